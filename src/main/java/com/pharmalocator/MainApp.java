@@ -5,6 +5,9 @@ import org.slf4j.LoggerFactory;
 
 import com.pharmalocator.config.AppConfig;
 import com.pharmalocator.services.DatabaseService;
+import com.pharmalocator.services.FavoritesService;
+import com.pharmalocator.services.HttpClientFactory;
+import com.pharmalocator.services.RegionalDatasetService;
 
 import javafx.application.Application;
 import javafx.application.Platform;
@@ -54,9 +57,16 @@ public class MainApp extends Application {
 
             // Load configuration
             config = AppConfig.getInstance();
+
+            // Warm up connections to the API and tile hosts in the background
+            HttpClientFactory.getInstance().preconnect();
             
-            // Initialize database
-            DatabaseService.getInstance();
+            // Initialize database and schedule its cleanup
+            DatabaseService.getInstance().startMaintenance();
+            FavoritesService.getInstance().loadAsync();
+
+            // Load the offline regional dataset and schedule its refresh
+            RegionalDatasetService.getInstance().start();
             
             // Load FXML
             FXMLLoader loader = new FXMLLoader(getClass().getResource("/main_view.fxml"));
@@ -146,9 +156,15 @@ public class MainApp extends Application {
                 controller.shutdown();
             }
 
+            // Stop the regional import before the database goes away
+            RegionalDatasetService.getInstance().shutdown();
+
             // Close database
             DatabaseService.getInstance().close();
 
+            // Release pooled HTTP connections
+            HttpClientFactory.getInstance().shutdown();
+
             logger.info("Application shutdown complete");
         } catch (Exception e) {
             logger.error("Error during shutdown", e);
@@ -5,7 +5,10 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
+import java.util.stream.Collectors;
 
 /**
  * Singleton configuration manager for the application.
@@ -114,6 +117,22 @@ public class AppConfig {
         return getProperty("api.overpass.url", "https://overpass-api.de/api/interpreter");
     }
 
+    /**
+     * Overpass mirrors to route queries between (comma-separated
+     * api.overpass.urls), falling back to the single api.overpass.url.
+     */
+    public List<String> getOverpassUrls() {
+        String urls = getProperty("api.overpass.urls");
+        if (urls == null || urls.isBlank()) {
+            return List.of(getOverpassUrl());
+        }
+        return Arrays.stream(urls.split(","))
+                .map(String::trim)
+                .filter(url -> !url.isEmpty())
+                .distinct()
+                .collect(Collectors.toList());
+    }
+
     public String getNominatimUrl() {
         return getProperty("api.nominatim.url", "https://nominatim.openstreetmap.org");
     }
@@ -138,6 +157,10 @@ public class AppConfig {
         return getIntProperty("map.max.markers", 100);
     }
 
+    public int getBatchSize() {
+        return getIntProperty("performance.batch.size", 50);
+    }
+
     public String getDatabasePath() {
         return getProperty("db.path", "geopharfinder.db");
     }
@@ -4,18 +4,22 @@ import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.pharmalocator.models.DistanceKernel;
 import com.pharmalocator.models.Location;
 import com.pharmalocator.models.Pharmacy;
 import com.pharmalocator.services.ApiService;
 import com.pharmalocator.services.CacheService;
+import com.pharmalocator.services.FavoritesService;
 import com.pharmalocator.services.GeocodingService;
 import com.pharmalocator.services.IpGeolocationService;
 import com.pharmalocator.services.LocalTileServer;
@@ -23,6 +27,7 @@ import com.pharmalocator.services.LocationService;
 import com.pharmalocator.services.MapService;
 import com.pharmalocator.services.OfflineManager;
 import com.pharmalocator.services.OfflineTileCache;
+import com.pharmalocator.services.SearchHistoryIndex;
 
 import javafx.animation.Interpolator;
 import javafx.animation.KeyFrame;
@@ -76,6 +81,7 @@ public class MainViewController {
     @FXML private Label phoneLabel;
     @FXML private Label hoursLabel;
     @FXML private Label distanceLabel;
+    @FXML private Button favoriteButton;
 
     @FXML private VBox sidebar;
     @FXML private Button sidebarToggleButton;
@@ -106,8 +112,10 @@ public class MainViewController {
     private final OfflineTileCache tileCache = new OfflineTileCache();
     private final LocalTileServer tileServer = new LocalTileServer(tileCache);
     private final OfflineManager offlineManager = new OfflineManager();
+    private final FavoritesService favoritesService = FavoritesService.getInstance();
 
     private Location userLocation;
+    private Pharmacy detailsPharmacy; // Pharmacy shown in the details panel
     private boolean sidebarOpen = true;
     private boolean pickLocationModeActive = false;
     private boolean isDarkMode = false; // Track current theme
@@ -118,6 +126,10 @@ public class MainViewController {
     private java.util.concurrent.ScheduledExecutorService retryScheduler = 
         java.util.concurrent.Executors.newScheduledThreadPool(1); // For timeout/retry
     private volatile boolean isLoadingPharmacies = false; // Track if currently loading
+    // API fetch running for a location, so retries do not attach a second handler
+    private final Object pendingFetchLock = new Object();
+    private Location pendingFetchLocation;
+    private CompletableFuture<List<Pharmacy>> pendingFetch;
     
     // Freeze detection and recovery (DISABLED for performance - rely on timeout instead)
     private volatile long lastActivityTimestamp = System.currentTimeMillis();
@@ -134,7 +146,7 @@ public class MainViewController {
        ========================= */
 
     private final ContextMenu suggestionsPopup = new ContextMenu();
-    private final Set<String> searchHistory = new HashSet<>();
+    private final SearchHistoryIndex searchHistory = SearchHistoryIndex.getInstance();
 
     /* =========================
        INITIALIZATION
@@ -148,6 +160,11 @@ public class MainViewController {
         // Setup offline manager and listeners
         setupOfflineManager();
 
+        // Stale cache entries are refetched in the background while online
+        cacheService.setRevalidator((lat, lon) -> offlineManager.isOffline()
+                ? CompletableFuture.completedFuture(List.of())
+                : apiService.refreshNearbyPharmaciesAsync(lat, lon));
+
         setupMap();
         setupUI();
         setupAutocomplete();
@@ -160,8 +177,9 @@ public class MainViewController {
         // FREEZE WATCHDOG DISABLED FOR PERFORMANCE - Rely on timeout mechanism instead
         // startFreezeWatchdog();
 
-        // Show UI immediately, load data in background for instant startup
-        Platform.runLater(() -> {
+        // Show UI immediately, load data in background for instant startup.
+        // The last view is restored as soon as it is read from disk.
+        cacheService.locationCachesReady().thenRunAsync(() -> {
             // Try to restore from cache first for instant display
             tryRestoreFromCache();
             
@@ -174,7 +192,7 @@ public class MainViewController {
             
             // Then detect real location in background (won't block UI)
             detectLocationOnStartup();
-        });
+        }, Platform::runLater);
     }
     
     private void startFreezeWatchdog() {
@@ -252,6 +270,11 @@ public class MainViewController {
      * Load only cached pharmacies when offline
      */
     private void loadCachedPharmaciesOnly() {
+        if (userLocation == null && !cacheService.isLocationCachesReady()) {
+            cacheService.locationCachesReady().thenRunAsync(this::loadCachedPharmaciesOnly, Platform::runLater);
+            return;
+        }
+
         if (userLocation == null) {
             // Try to get cached location
             Location cachedLocation = cacheService.getCachedUserLocation();
@@ -265,6 +288,12 @@ public class MainViewController {
             }
         }
 
+        if (!cacheService.isPharmacyCacheReady()) {
+            setStatus("📵 Offline - Loading cached pharmacies...");
+            cacheService.pharmacyCacheReady().thenRunAsync(this::loadCachedPharmaciesOnly, Platform::runLater);
+            return;
+        }
+
         // Load cached pharmacies
         List<Pharmacy> cachedPharmacies = cacheService.getCachedPharmacies(
             userLocation.getLatitude(),
@@ -272,8 +301,7 @@ public class MainViewController {
         );
 
         if (cachedPharmacies != null && !cachedPharmacies.isEmpty()) {
-            cachedPharmacies.forEach(p -> p.calculateDistanceFrom(userLocation));
-            displayPharmacies(cachedPharmacies);
+            displayPharmacies(nearestFirst(cachedPharmacies, userLocation));
             setStatus("📵 Offline - Showing " + cachedPharmacies.size() + " cached pharmacies from last location");
             logger.info("Loaded {} cached pharmacies in offline mode", cachedPharmacies.size());
         } else {
@@ -514,7 +542,10 @@ private void handleBackToList() {
                 box.setMaxWidth(Double.MAX_VALUE);
                 box.setStyle("-fx-padding: 8; -fx-cursor: hand;");
 
-                Label name = new Label(p.getName());
+                // Memory lookup, cheap enough for every cell as the list scrolls
+                Label name = new Label(favoritesService.isFavorite(p.getId())
+                        ? "★ " + p.getName()
+                        : p.getName());
                 name.getStyleClass().add("pharmacy-item-name");
                 name.setWrapText(true);
                 name.setMaxWidth(Double.MAX_VALUE);
@@ -540,6 +571,15 @@ private void handleBackToList() {
             }
         });
 
+        // Redraw stars, the marker and the details button without re-querying
+        favoritesService.addListener((pharmacy, favorite) -> Platform.runLater(() -> {
+            pharmacyListView.refresh();
+            mapService.setPharmacyFavorite(pharmacy.getId(), favorite);
+            if (detailsPharmacy != null && detailsPharmacy.getId().equals(pharmacy.getId())) {
+                updateFavoriteButton();
+            }
+        }));
+
         pharmacyListView.getSelectionModel()
                 .selectedItemProperty()
                 .addListener((obs, old, selected) -> {
@@ -598,11 +638,7 @@ private void handleBackToList() {
                 return;
             }
 
-            List<String> suggestions = searchHistory.stream()
-                    .filter(s -> s != null && s.toLowerCase().startsWith(text.toLowerCase()))
-                    .distinct()
-                    .limit(5)
-                    .collect(Collectors.toList());
+            List<String> suggestions = searchHistory.suggest(text);
 
             if (suggestions.isEmpty()) {
                 suggestionsPopup.hide();
@@ -775,10 +811,10 @@ private void handleBackToList() {
             );
 
             if (cachedList != null && !cachedList.isEmpty()) {
-                cachedList.forEach(p -> p.calculateDistanceFrom(userLocation));
+                List<Pharmacy> ranked = nearestFirst(cachedList, userLocation);
                 Platform.runLater(() -> {
                     updateActivity();
-                    displayPharmacies(cachedList);
+                    displayPharmacies(ranked);
                     isLoadingPharmacies = false;
                     setStatus("📵 Offline - Showing " + cachedList.size() + " cached pharmacies");
                 });
@@ -801,24 +837,35 @@ private void handleBackToList() {
         executorService.submit(() -> {
             try {
                 // Try cache first for instant loading
-                List<Pharmacy> cachedList = cacheService.getCachedPharmacies(
-                    userLocation.getLatitude(),
-                    userLocation.getLongitude()
+                Location requestLocation = userLocation;
+                CacheService.Lookup cached = cacheService.lookupPharmacies(
+                    requestLocation.getLatitude(),
+                    requestLocation.getLongitude()
                 );
 
-                if (cachedList != null && !cachedList.isEmpty()) {
+                if (cached != null && !cached.getPharmacies().isEmpty()) {
                     // Cache HIT! Display immediately
-                    logger.info("✅ Cache HIT! Loading {} pharmacies from cache", cachedList.size());
-                    cachedList.forEach(p -> p.calculateDistanceFrom(userLocation));
+                    List<Pharmacy> cachedList = cached.getPharmacies();
+                    logger.info("✅ Cache HIT! Loading {} {} pharmacies from cache",
+                            cachedList.size(), cached.getFreshness());
+                    List<Pharmacy> ranked = nearestFirst(cachedList, requestLocation);
                     Platform.runLater(() -> {
                         updateActivity();
-                        displayPharmacies(cachedList);
+                        displayPharmacies(ranked);
                         isLoadingPharmacies = false; // Stop retry loop
-                        setStatus("Loaded from cache (fast!)");
+                        setStatus(cached.isStale() ? "Loaded from cache, refreshing..." : "Loaded from cache (fast!)");
                     });
-
-                    // Still fetch fresh data in background to update cache
-                    fetchAndUpdateCache();
+                    cacheService.cacheUserLocation(requestLocation);
+
+                    // Stale or soon stale: the cache refetches the area once,
+                    // show the result if we are still here
+                    if (cached.getRefresh() != null) {
+                        cached.getRefresh().thenAccept(list -> {
+                            if (list != null && !list.isEmpty()) {
+                                Platform.runLater(() -> showRefreshedPharmacies(requestLocation));
+                            }
+                        });
+                    }
                 } else {
                     // Cache MISS - fetch from API
                     logger.info("❌ Cache MISS - Fetching from API");
@@ -841,15 +888,55 @@ private void handleBackToList() {
     }
 
     /**
-     * Fetch pharmacies from API and update cache
+     * Redisplay the cached pharmacies after a background refresh.
+     */
+    private void showRefreshedPharmacies(Location requestLocation) {
+        if (requestLocation != userLocation) {
+            return; // Location changed while refreshing
+        }
+        List<Pharmacy> refreshed = cacheService.getCachedPharmacies(
+            requestLocation.getLatitude(),
+            requestLocation.getLongitude()
+        );
+        if (refreshed != null && !refreshed.isEmpty()) {
+            displayPharmacies(nearestFirst(refreshed, requestLocation));
+            setStatus(refreshed.size() + " pharmacies found");
+        }
+    }
+
+    /**
+     * Fetch pharmacies from API and update cache. Pharmacies are shown batch
+     * by batch while they are parsed.
      */
     private void fetchAndUpdateCache() {
-        executorService.submit(() -> {
+        Location requestLocation = userLocation;
+
+        Consumer<List<Pharmacy>> onBatch = batch -> Platform.runLater(() -> {
+            // Ignore late batches from a previous location
+            if (requestLocation == userLocation) {
+                appendPharmacies(batch);
+            }
+        });
+
+        CompletableFuture<List<Pharmacy>> fetch;
+        synchronized (pendingFetchLock) {
+            if (requestLocation == pendingFetchLocation && pendingFetch != null && !pendingFetch.isDone()) {
+                // Its handler will display and cache the result
+                logger.info("Fetch for this location still running, not starting another");
+                return;
+            }
+            // Identical requests already in flight are shared, not repeated
+            fetch = apiService.getNearbyPharmaciesAsync(
+                    requestLocation.getLatitude(),
+                    requestLocation.getLongitude(),
+                    onBatch
+            );
+            pendingFetchLocation = requestLocation;
+            pendingFetch = fetch;
+        }
+
+        fetch.thenAccept(list -> {
             try {
-                List<Pharmacy> list = apiService.getNearbyPharmacies(
-                        userLocation.getLatitude(),
-                        userLocation.getLongitude()
-                );
 
                 if (list == null || list.isEmpty()) {
                     Platform.runLater(() -> {
@@ -889,19 +976,22 @@ private void handleBackToList() {
                     return;
                 }
 
-                list.forEach(p -> p.calculateDistanceFrom(userLocation));
+                // Distances were already set by ApiService for requestLocation
 
                 // Update cache with fresh data
                 cacheService.cachePharmacies(
-                    userLocation.getLatitude(),
-                    userLocation.getLongitude(),
+                    requestLocation.getLatitude(),
+                    requestLocation.getLongitude(),
                     list
                 );
 
                 // Cache user location
-                cacheService.cacheUserLocation(userLocation);
+                cacheService.cacheUserLocation(requestLocation);
 
                 Platform.runLater(() -> {
+                    if (requestLocation != userLocation) {
+                        return; // Location changed while fetching
+                    }
                     displayPharmacies(list);
                     setStatus(list.size() + " pharmacies found");
                 });
@@ -934,6 +1024,53 @@ private void handleBackToList() {
 }
 
 
+    /**
+     * Show a batch of pharmacies while the fetch is still running.
+     * displayPharmacies() replaces them with the final sorted list afterwards.
+     * An auto-retry joins the running request and gets its batches replayed,
+     * so pharmacies already listed are skipped.
+     */
+    private void appendPharmacies(List<Pharmacy> batch) {
+        updateActivity();
+
+        // We have results, no need to retry
+        if (currentRetryTask != null && !currentRetryTask.isDone()) {
+            currentRetryTask.cancel(false);
+        }
+
+        int room = pharmacyDisplayLimit - pharmacyListView.getItems().size();
+        if (room <= 0) {
+            return;
+        }
+
+        // Pharmacy equality is by OSM id
+        Set<Pharmacy> shownAlready = new HashSet<>(pharmacyListView.getItems());
+        List<Pharmacy> visible = batch.stream()
+                .filter(pharmacy -> !shownAlready.contains(pharmacy))
+                .limit(room)
+                .collect(Collectors.toList());
+        if (visible.isEmpty()) {
+            return;
+        }
+
+        pharmacyListView.getItems().addAll(visible);
+        mapService.appendPharmacyMarkers(visible);
+
+        int shown = pharmacyListView.getItems().size();
+        countLabel.setText(String.valueOf(shown));
+        setStatus("⏳ " + shown + " pharmacies found so far...");
+        setLoading(false);
+    }
+
+    /**
+     * The pharmacies to display from a cached list, ranked around a new
+     * position: a cheap metric picks the nearest, exact distances are only
+     * computed for those shown.
+     */
+    private List<Pharmacy> nearestFirst(List<Pharmacy> pharmacies, Location from) {
+        return new DistanceKernel(from).nearest(pharmacies, pharmacyDisplayLimit, Double.MAX_VALUE);
+    }
+
     private void displayPharmacies(List<Pharmacy> pharmacies) {
         updateActivity();
 
@@ -961,8 +1098,6 @@ private void handleBackToList() {
         mapService.addPharmacyMarkers(displayList);
         mapService.fitBounds();
 
-        displayList.forEach(p -> searchHistory.add(p.getName()));
-
         setStatus(displayList.isEmpty()
                 ? "No pharmacies found"
                 : displayList.size() + " pharmacies found");
@@ -982,9 +1117,16 @@ private void handleBackToList() {
                 p.getOpeningHours() != null ? p.getOpeningHours() : "—"
         );
         distanceLabel.setText(p.getFormattedDistance());
+        detailsPharmacy = p;
+        updateFavoriteButton();
         pharmacyInfoBox.setVisible(true);
     }
 
+    private void updateFavoriteButton() {
+        boolean favorite = detailsPharmacy != null && favoritesService.isFavorite(detailsPharmacy.getId());
+        favoriteButton.setText(favorite ? "★ Remove from Favorites" : "☆ Add to Favorites");
+    }
+
     /* =========================
        UI EVENTS
        ========================= */
@@ -1048,7 +1190,11 @@ private void handleBackToList() {
     }
     @FXML
     private void handleFavorite() {
-        System.out.println("Favorite feature not implemented yet.");
+        if (detailsPharmacy == null) {
+            return;
+        }
+        boolean favorite = favoritesService.toggle(detailsPharmacy);
+        setStatus(favorite ? "★ Added to favorites" : "Removed from favorites");
     }
 
     @FXML
@@ -1224,23 +1370,35 @@ private void handleBackToList() {
             );
             updateLocationLabel();
 
-            // Try to load cached pharmacies
-            List<Pharmacy> cachedPharmacies = cacheService.getCachedPharmacies(
-                cachedLocation.getLatitude(),
-                cachedLocation.getLongitude()
-            );
-
-            if (cachedPharmacies != null && !cachedPharmacies.isEmpty()) {
-                logger.info("✅ Loaded {} pharmacies from cache - INSTANT STARTUP!", cachedPharmacies.size());
-                cachedPharmacies.forEach(p -> p.calculateDistanceFrom(userLocation));
-                displayPharmacies(cachedPharmacies);
-                setStatus("Loaded from cache (" + cachedPharmacies.size() + " pharmacies)");
-            }
+            // Pharmacies follow as soon as the pharmacy cache is read
+            cacheService.pharmacyCacheReady()
+                    .thenRunAsync(() -> restoreCachedPharmacies(cachedLocation), Platform::runLater);
         }
+    }
 
+    /**
+     * Show the cached pharmacies around the restored location, unless the
+     * user moved or a fresh result arrived meanwhile.
+     */
+    private void restoreCachedPharmacies(Location cachedLocation) {
         // Log cache stats
         CacheService.CacheStats stats = cacheService.getStats();
         logger.info("Cache stats: {}", stats);
+
+        if (userLocation != cachedLocation || !pharmacyListView.getItems().isEmpty()) {
+            return;
+        }
+
+        List<Pharmacy> cachedPharmacies = cacheService.getCachedPharmacies(
+            cachedLocation.getLatitude(),
+            cachedLocation.getLongitude()
+        );
+
+        if (cachedPharmacies != null && !cachedPharmacies.isEmpty()) {
+            logger.info("✅ Loaded {} pharmacies from cache - INSTANT STARTUP!", cachedPharmacies.size());
+            displayPharmacies(nearestFirst(cachedPharmacies, userLocation));
+            setStatus("Loaded from cache (" + cachedPharmacies.size() + " pharmacies)");
+        }
     }
 
     /**
@@ -1326,6 +1484,9 @@ private void handleBackToList() {
         // Save map state
         saveMapState();
 
+        // Stop pharmacy fetch threads
+        apiService.shutdown();
+
         // Shutdown offline services
         tileServer.stop();
         tileCache.shutdown();
@@ -1337,6 +1498,9 @@ private void handleBackToList() {
         // Shutdown main executor
         shutdownExecutor();
 
+        // Write pending cache changes after the last background task
+        cacheService.shutdown();
+
         logger.info("MainViewController shutdown complete");
     }
 
@@ -0,0 +1,225 @@
+package com.pharmalocator.models;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Fast distance ranking around one query point.
+ *
+ * Ranking uses the equirectangular approximation: with cos(lat) of the query
+ * point computed once, the squared distance of a candidate is two
+ * subtractions and three multiplications, no trigonometry. Below a few
+ * hundred kilometres it orders candidates the same way as haversine. The
+ * exact haversine distance ({@link Location#calculateDistance}) is only
+ * computed for the final results.
+ *
+ * Batch methods work on primitive coordinate arrays in plain loops the JIT
+ * can vectorize.
+ */
+public final class DistanceKernel {
+
+    private static final double KM_PER_DEGREE = 6371.0 * Math.PI / 180.0;
+
+    // Approximate and exact distances disagree slightly near the radius
+    private static final double RADIUS_SLACK = 1.02;
+
+    private final double lat;
+    private final double lon;
+    private final double cosLat;
+
+    public DistanceKernel(double lat, double lon) {
+        this.lat = lat;
+        this.lon = lon;
+        this.cosLat = Math.cos(Math.toRadians(lat));
+    }
+
+    public DistanceKernel(Location location) {
+        this(location.getLatitude(), location.getLongitude());
+    }
+
+    /* =========================
+       SINGLE POINT
+       ========================= */
+
+    /**
+     * Ranking metric: squared distance in degrees of latitude.
+     */
+    public double squaredDegrees(double pointLat, double pointLon) {
+        double dLat = pointLat - lat;
+        double dLon = (pointLon - lon) * cosLat;
+        return dLat * dLat + dLon * dLon;
+    }
+
+    public double approxKm(double pointLat, double pointLon) {
+        return Math.sqrt(squaredDegrees(pointLat, pointLon)) * KM_PER_DEGREE;
+    }
+
+    public double exactKm(double pointLat, double pointLon) {
+        return Location.calculateDistance(lat, lon, pointLat, pointLon);
+    }
+
+    /**
+     * Squared-degree bound matching a radius in kilometres, with a little
+     * slack so the exact distance gets the final say at the edge.
+     */
+    public static double squaredDegreesWithin(double radiusKm) {
+        double degrees = radiusKm / KM_PER_DEGREE;
+        return degrees * degrees * RADIUS_SLACK;
+    }
+
+    /* =========================
+       BATCH
+       ========================= */
+
+    /**
+     * Ranking metric for {@code n} points into {@code out}.
+     */
+    public void squaredDegrees(double[] lats, double[] lons, int n, double[] out) {
+        double qLat = lat;
+        double qLon = lon;
+        double c = cosLat;
+        for (int i = 0; i < n; i++) {
+            double dLat = lats[i] - qLat;
+            double dLon = (lons[i] - qLon) * c;
+            out[i] = dLat * dLat + dLon * dLon;
+        }
+    }
+
+    /**
+     * Indices of the {@code k} points nearest to the query point within
+     * {@code radiusKm}, nearest first by exact distance.
+     */
+    public int[] nearestIndices(double[] lats, double[] lons, int n, int k, double radiusKm) {
+        int[] indices = new int[Math.min(Math.max(k, 0), n)];
+        int count = rank(lats, lons, n, radiusKm, indices, new double[indices.length]);
+        return Arrays.copyOf(indices, count);
+    }
+
+    /**
+     * Up to {@code k} of the candidates nearest to the query point within
+     * {@code radiusKm}, nearest first. The result holds copies carrying the
+     * exact distance; the candidates themselves are left untouched.
+     */
+    public List<Pharmacy> nearest(List<Pharmacy> candidates, int k, double radiusKm) {
+        int n = candidates.size();
+        double[] lats = new double[n];
+        double[] lons = new double[n];
+        for (int i = 0; i < n; i++) {
+            Pharmacy pharmacy = candidates.get(i);
+            lats[i] = pharmacy.getLatitude();
+            lons[i] = pharmacy.getLongitude();
+        }
+
+        int[] indices = new int[Math.min(Math.max(k, 0), n)];
+        double[] distances = new double[indices.length];
+        int count = rank(lats, lons, n, radiusKm, indices, distances);
+
+        List<Pharmacy> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(candidates.get(indices[i]).withDistance(distances[i]));
+        }
+        return result;
+    }
+
+    /**
+     * Select the {@code indices.length} best candidates by the cheap metric,
+     * then compute exact distances for those only and sort them.
+     *
+     * @return number of entries written to {@code indices} and {@code distances}
+     */
+    private int rank(double[] lats, double[] lons, int n, double radiusKm,
+                     int[] indices, double[] distances) {
+        double[] scores = new double[n];
+        squaredDegrees(lats, lons, n, scores);
+
+        int selected = selectSmallest(scores, n, squaredDegreesWithin(radiusKm), indices);
+
+        int kept = 0;
+        for (int i = 0; i < selected; i++) {
+            int index = indices[i];
+            double distance = exactKm(lats[index], lons[index]);
+            if (distance <= radiusKm) {
+                indices[kept] = index;
+                distances[kept++] = distance;
+            }
+        }
+
+        // Only the final few are left, boxing them for the sort is cheap
+        Integer[] order = new Integer[kept];
+        for (int i = 0; i < kept; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(distances[a], distances[b]));
+
+        int[] sortedIndices = new int[kept];
+        double[] sortedDistances = new double[kept];
+        for (int i = 0; i < kept; i++) {
+            sortedIndices[i] = indices[order[i]];
+            sortedDistances[i] = distances[order[i]];
+        }
+        System.arraycopy(sortedIndices, 0, indices, 0, kept);
+        System.arraycopy(sortedDistances, 0, distances, 0, kept);
+        return kept;
+    }
+
+    /**
+     * Bounded max-heap selection of the smallest scores not above
+     * {@code maxScore}, as many as {@code heap} holds. The selected indices
+     * are left in {@code heap} in no particular order.
+     *
+     * @return number of indices selected
+     */
+    private static int selectSmallest(double[] scores, int n, double maxScore, int[] heap) {
+        int capacity = heap.length;
+        int size = 0;
+
+        for (int i = 0; i < n && capacity > 0; i++) {
+            double score = scores[i];
+            if (score > maxScore) {
+                continue;
+            }
+            if (size < capacity) {
+                heap[size] = i;
+                siftUp(heap, size++, scores);
+            } else if (score < scores[heap[0]]) {
+                heap[0] = i;
+                siftDown(heap, size, scores);
+            }
+        }
+        return size;
+    }
+
+    private static void siftUp(int[] heap, int pos, double[] scores) {
+        int item = heap[pos];
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if (scores[heap[parent]] >= scores[item]) {
+                break;
+            }
+            heap[pos] = heap[parent];
+            pos = parent;
+        }
+        heap[pos] = item;
+    }
+
+    private static void siftDown(int[] heap, int size, double[] scores) {
+        int item = heap[0];
+        int pos = 0;
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && scores[heap[child + 1]] > scores[heap[child]]) {
+                child++;
+            }
+            if (scores[item] >= scores[heap[child]]) {
+                break;
+            }
+            heap[pos] = heap[child];
+            pos = child;
+        }
+        heap[pos] = item;
+    }
+}
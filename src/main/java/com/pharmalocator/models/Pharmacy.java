@@ -2,7 +2,6 @@ package com.pharmalocator.models;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -11,7 +10,7 @@ import java.util.Objects;
  * Represents a pharmacy with its location, contact information, and metadata.
  */
 public class Pharmacy implements Serializable {
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 2L;
 
     private String id;
     private String name;
@@ -22,11 +21,11 @@ public class Pharmacy implements Serializable {
     private String openingHours;
     private double distance; // Distance from user in kilometers
     private boolean isOpen;
-    private Map<String, String> tags;
+    private PharmacyTags tags;
     private List<double[]> geometry; // Building polygon coordinates [[lat,lon], [lat,lon], ...]
 
     public Pharmacy() {
-        this.tags = new HashMap<>();
+        this.tags = new PharmacyTags();
         this.geometry = new ArrayList<>();
     }
 
@@ -38,6 +37,29 @@ public class Pharmacy implements Serializable {
         this.longitude = longitude;
     }
 
+    /**
+     * Copy that shares only immutable state with {@code other}: tags and
+     * geometry are copied, so neither side sees the other's changes.
+     */
+    private Pharmacy(Pharmacy other) {
+        this.id = other.id;
+        this.name = other.name;
+        this.latitude = other.latitude;
+        this.longitude = other.longitude;
+        this.address = other.address;
+        this.phone = other.phone;
+        this.openingHours = other.openingHours;
+        this.distance = other.distance;
+        this.isOpen = other.isOpen;
+        this.tags = other.tags != null ? other.tags.copy() : new PharmacyTags();
+        this.geometry = new ArrayList<>(other.geometry != null ? other.geometry.size() : 0);
+        if (other.geometry != null) {
+            for (double[] point : other.geometry) {
+                this.geometry.add(point.clone());
+            }
+        }
+    }
+
     /**
      * Calculates and sets the distance from a given location.
      */
@@ -73,7 +95,7 @@ public class Pharmacy implements Serializable {
      */
     public void addTag(String key, String value) {
         if (tags == null) {
-            tags = new HashMap<>();
+            tags = new PharmacyTags();
         }
         tags.put(key, value);
     }
@@ -85,6 +107,16 @@ public class Pharmacy implements Serializable {
         return tags != null ? tags.get(key) : null;
     }
 
+    /**
+     * A copy of this pharmacy with {@code distance} set, for query results
+     * built from shared instances (indexes, caches).
+     */
+    public Pharmacy withDistance(double distance) {
+        Pharmacy copy = new Pharmacy(this);
+        copy.distance = distance;
+        return copy;
+    }
+
     // Getters and Setters
     public String getId() {
         return id;
@@ -158,11 +190,18 @@ public class Pharmacy implements Serializable {
         isOpen = open;
     }
 
+    /**
+     * Read-only view of the tags; use {@link #addTag} to change them.
+     */
     public Map<String, String> getTags() {
-        return tags;
+        return tags != null ? tags.asMap() : Map.of();
     }
 
     public void setTags(Map<String, String> tags) {
+        this.tags = PharmacyTags.fromMap(tags);
+    }
+
+    public void setTags(PharmacyTags tags) {
         this.tags = tags;
     }
 
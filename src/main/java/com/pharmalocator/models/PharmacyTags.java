@@ -0,0 +1,229 @@
+package com.pharmalocator.models;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Compact storage of the OSM tags of a pharmacy.
+ *
+ * Keys and values are packed into one array ({@code key0, value0, key1,
+ * value1, ...}) instead of a HashMap per pharmacy. Common OSM keys and
+ * enumerated values come from a fixed dictionary, so they exist once no
+ * matter how many pharmacies are loaded; anything else is kept as parsed
+ * and goes away with its pharmacy. A {@link Map} view is only built when
+ * asked for.
+ */
+public final class PharmacyTags implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final String[] EMPTY = new String[0];
+
+    // Fixed on purpose: free-form values (house numbers, phones) are not pooled
+    private static final Map<String, String> DICTIONARY = dictionary(
+            // Keys
+            "amenity", "healthcare", "name", "brand", "brand:wikidata", "operator",
+            "opening_hours", "phone", "contact:phone", "website", "contact:website",
+            "email", "contact:email", "wheelchair", "dispensing", "drive_through",
+            "addr:street", "addr:housenumber", "addr:city", "addr:postcode",
+            "addr:country", "addr:suburb", "check_date", "source", "building", "level",
+            // Enumerated values
+            "yes", "no", "limited", "only", "designated", "pharmacy", "chemist",
+            "24/7", "off", "closed", "Mo-Fr", "Mo-Sa", "Mo-Su", "Sa", "Su", "PH");
+
+    private transient String[] entries = EMPTY;
+    private transient Map<String, String> view;
+
+    public PharmacyTags() {
+    }
+
+    /**
+     * Build from a flat list of alternating keys and values.
+     */
+    public static PharmacyTags fromPairs(List<String> keyValuePairs) {
+        PharmacyTags tags = new PharmacyTags();
+        String[] packed = new String[keyValuePairs.size() & ~1];
+        for (int i = 0; i < packed.length; i += 2) {
+            packed[i] = shared(keyValuePairs.get(i));
+            packed[i + 1] = shared(keyValuePairs.get(i + 1));
+        }
+        tags.entries = packed;
+        return tags;
+    }
+
+    public static PharmacyTags fromMap(Map<String, String> map) {
+        PharmacyTags tags = new PharmacyTags();
+        if (map != null) {
+            map.forEach(tags::put);
+        }
+        return tags;
+    }
+
+    public String get(String key) {
+        int index = indexOf(key);
+        return index >= 0 ? entries[index + 1] : null;
+    }
+
+    /**
+     * Add or replace a tag. The array grows by exactly one pair, since tags
+     * are written once when a pharmacy is parsed and then only read.
+     */
+    public void put(String key, String value) {
+        if (key == null || value == null) {
+            return;
+        }
+
+        int index = indexOf(key);
+        if (index >= 0) {
+            entries[index + 1] = shared(value);
+            return;
+        }
+
+        String[] grown = Arrays.copyOf(entries, entries.length + 2);
+        grown[entries.length] = shared(key);
+        grown[entries.length + 1] = shared(value);
+        entries = grown;
+    }
+
+    /**
+     * An independent copy; the strings themselves are shared.
+     */
+    public PharmacyTags copy() {
+        PharmacyTags copy = new PharmacyTags();
+        copy.entries = entries.length == 0 ? EMPTY : entries.clone();
+        return copy;
+    }
+
+    public int size() {
+        return entries.length / 2;
+    }
+
+    public boolean isEmpty() {
+        return entries.length == 0;
+    }
+
+    /**
+     * Read-only map view backed by the packed array.
+     */
+    public Map<String, String> asMap() {
+        if (view == null) {
+            view = new MapView();
+        }
+        return view;
+    }
+
+    private int indexOf(String key) {
+        String[] current = entries;
+        for (int i = 0; i < current.length; i += 2) {
+            if (current[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String shared(String s) {
+        return DICTIONARY.getOrDefault(s, s);
+    }
+
+    private static Map<String, String> dictionary(String... strings) {
+        Map<String, String> map = new HashMap<>();
+        for (String string : strings) {
+            map.put(string, string);
+        }
+        return Map.copyOf(map);
+    }
+
+    /* =========================
+       SERIALIZATION
+       ========================= */
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(entries.length / 2);
+        for (String entry : entries) {
+            out.writeUTF(entry);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid tag count: " + count);
+        }
+
+        // Deserialized pharmacies share dictionary strings with parsed ones
+        String[] packed = new String[count * 2];
+        for (int i = 0; i < packed.length; i += 2) {
+            packed[i] = shared(in.readUTF());
+            packed[i + 1] = shared(in.readUTF());
+        }
+        entries = packed;
+    }
+
+    /* =========================
+       MAP VIEW
+       ========================= */
+
+    private class MapView extends AbstractMap<String, String> {
+        @Override
+        public String get(Object key) {
+            return key instanceof String ? PharmacyTags.this.get((String) key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof String && indexOf((String) key) >= 0;
+        }
+
+        @Override
+        public int size() {
+            return PharmacyTags.this.size();
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<String, String>> iterator() {
+                    String[] snapshot = entries;
+                    return new Iterator<>() {
+                        private int next;
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < snapshot.length;
+                        }
+
+                        @Override
+                        public Entry<String, String> next() {
+                            if (next >= snapshot.length) {
+                                throw new NoSuchElementException();
+                            }
+                            Entry<String, String> entry =
+                                    new SimpleImmutableEntry<>(snapshot[next], snapshot[next + 1]);
+                            next += 2;
+                            return entry;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return PharmacyTags.this.size();
+                }
+            };
+        }
+    }
+}
@@ -1,11 +1,11 @@
 package com.pharmalocator.services;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.pharmalocator.config.AppConfig;
+import com.pharmalocator.models.DistanceKernel;
 import com.pharmalocator.models.Pharmacy;
+import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
@@ -13,12 +13,21 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.net.URLEncoder;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * Service responsible for communicating with OpenStreetMap APIs.
@@ -29,13 +38,25 @@ public class ApiService {
 
     private final OkHttpClient httpClient;
     private final AppConfig config;
+    private final OverpassEndpointPool overpassPool;
+    private final PharmacyCellStore cellStore;
+
+    // Requests currently running, keyed by quantized position and radius
+    private final Map<String, InFlightFetch> inFlight = new ConcurrentHashMap<>();
+    private final ExecutorService fetchExecutor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "Overpass-Fetch");
+        t.setDaemon(true);
+        return t;
+    });
 
     public ApiService() {
         this.config = AppConfig.getInstance();
-        this.httpClient = new OkHttpClient.Builder()
-                .connectTimeout(15, TimeUnit.SECONDS) // Reduced from 30s
-                .readTimeout(15, TimeUnit.SECONDS)    // Reduced from 30s
-                .build();
+        this.httpClient = HttpClientFactory.getInstance().newClient(15, 15); // Reduced from 30s
+        this.overpassPool = new OverpassEndpointPool(config.getOverpassUrls());
+        this.cellStore = new PharmacyCellStore(
+                config.getDoubleProperty("search.cell.size.degrees", 0.02),
+                TimeUnit.HOURS.toMillis(config.getCacheExpiryHours()),
+                config.getIntProperty("search.cell.max.cells", 4096));
     }
 
     /* =========================
@@ -47,27 +68,185 @@ public class ApiService {
     }
 
     public List<Pharmacy> getNearbyPharmacies(double latitude, double longitude, int radius) {
+        return getNearbyPharmacies(latitude, longitude, radius, null);
+    }
+
+    /**
+     * Progressive variant: while the response is being read, pharmacies are
+     * handed to {@code onBatch} in small distance-sorted batches so the UI can
+     * show the first markers before the download has finished.
+     * The returned list is the complete, sorted and truncated result.
+     *
+     * @param onBatch receives each batch on the fetch thread, may be null
+     */
+    public List<Pharmacy> getNearbyPharmacies(double latitude, double longitude, int radius,
+                                              Consumer<List<Pharmacy>> onBatch) {
+        return getNearbyPharmaciesAsync(latitude, longitude, radius, onBatch).join();
+    }
+
+    public CompletableFuture<List<Pharmacy>> getNearbyPharmaciesAsync(
+            double latitude, double longitude, Consumer<List<Pharmacy>> onBatch) {
+        return getNearbyPharmaciesAsync(latitude, longitude, config.getDefaultSearchRadius(), onBatch);
+    }
+
+    /**
+     * Single-flight fetch: callers asking for (almost) the same position and
+     * radius while a request is still running share that request instead of
+     * sending a new one to Overpass. Batches already delivered to earlier
+     * callers are replayed to the ones joining late.
+     *
+     * The future never completes exceptionally; failures yield an empty list.
+     */
+    public CompletableFuture<List<Pharmacy>> getNearbyPharmaciesAsync(
+            double latitude, double longitude, int radius, Consumer<List<Pharmacy>> onBatch) {
+        return fetchAsync(flightKey(latitude, longitude, radius), onBatch,
+                publish -> fetchNearbyPharmacies(latitude, longitude, radius, false, publish));
+    }
+
+    /**
+     * Download the pharmacies around a position again, ignoring the grid
+     * cells already downloaded and the HTTP disk cache. Used to revalidate
+     * stale cache entries, which those layers would otherwise answer from
+     * the same old data. Shared like {@link #getNearbyPharmaciesAsync} with
+     * other refreshes of the same position, never with ordinary fetches.
+     */
+    public CompletableFuture<List<Pharmacy>> refreshNearbyPharmaciesAsync(double latitude, double longitude) {
+        int radius = config.getDefaultSearchRadius();
+        return fetchAsync("refresh:" + flightKey(latitude, longitude, radius), null,
+                publish -> fetchNearbyPharmacies(latitude, longitude, radius, true, publish));
+    }
+
+    private CompletableFuture<List<Pharmacy>> fetchAsync(
+            String key, Consumer<List<Pharmacy>> onBatch,
+            Function<Consumer<List<Pharmacy>>, List<Pharmacy>> fetch) {
+
+        InFlightFetch flight = new InFlightFetch();
+        InFlightFetch existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            logger.info("Joining in-flight pharmacy request {}", key);
+            existing.subscribe(onBatch);
+            return existing.future;
+        }
+
+        flight.subscribe(onBatch);
+        flight.future.whenComplete((result, error) -> inFlight.remove(key, flight));
+
         try {
-            logger.info("Fetching pharmacies near ({}, {}) within {}m",
-                    latitude, longitude, radius);
+            fetchExecutor.execute(() -> {
+                List<Pharmacy> result = List.of();
+                try {
+                    result = fetch.apply(flight::publish);
+                } catch (RuntimeException e) {
+                    logger.error("Pharmacy request {} failed", key, e);
+                } finally {
+                    // Always settle the future so the flight is released
+                    flight.future.complete(result);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.warn("Pharmacy request {} rejected: service shut down", key);
+            flight.future.complete(List.of());
+        }
 
-            String query = buildOverpassQuery(latitude, longitude, radius);
-            String response = executeOverpassQuery(query);
+        return flight.future;
+    }
 
-            List<Pharmacy> pharmacies =
-                    parsePharmacies(response, latitude, longitude);
+    /**
+     * Stop the fetch threads. Requests still pending complete with an empty list.
+     */
+    public void shutdown() {
+        fetchExecutor.shutdownNow();
+        inFlight.values().forEach(flight -> flight.future.complete(List.of()));
+    }
 
-            logger.info("Found {} pharmacies", pharmacies.size());
+    /**
+     * Answers from the offline regional dataset when it covers the search.
+     * Otherwise answers from the grid cells already downloaded and fetches
+     * only the missing or expired cells, all in one Overpass query. With
+     * {@code refresh} every cell is fetched, bypassing the HTTP disk cache.
+     */
+    private List<Pharmacy> fetchNearbyPharmacies(double latitude, double longitude, int radius,
+                                                 boolean refresh, Consumer<List<Pharmacy>> onBatch) {
+        RegionalDatasetService regional = RegionalDatasetService.getInstance();
+        if (regional.covers(latitude, longitude, radius)) {
+            List<Pharmacy> pharmacies = regional.nearest(latitude, longitude, config.getMaxMarkers(), radius);
+            logger.info("Found {} pharmacies in the offline dataset", pharmacies.size());
+            if (onBatch != null && !pharmacies.isEmpty()) {
+                onBatch.accept(pharmacies);
+            }
             return pharmacies;
+        }
+
+        List<Long> covering = cellStore.cellsCovering(latitude, longitude, radius);
+        List<Long> missing = refresh ? covering : cellStore.missingCells(covering);
+
+        logger.info("Fetching pharmacies near ({}, {}) within {}m ({} of {} cells to download)",
+                latitude, longitude, radius, missing.size(), covering.size());
+
+        // What an incomplete download returned; shown but not stored
+        List<Pharmacy> partial = List.of();
+        try {
+            // Show what we already know before downloading the rest
+            if (onBatch != null && missing.size() < covering.size()) {
+                List<Pharmacy> known = nearest(
+                        cellStore.collect(covering, latitude, longitude, radius), latitude, longitude, radius);
+                if (!known.isEmpty()) {
+                    onBatch.accept(known);
+                }
+            }
+
+            if (!missing.isEmpty()) {
+                String query = buildOverpassQuery(cellStore.boundingBoxes(missing));
+                OverpassResponseParser parser = new OverpassResponseParser();
+                List<Pharmacy> downloaded =
+                        executeOverpassQuery(parser, query, refresh, latitude, longitude, radius, onBatch);
+
+                if (parser.hasErrorRemark()) {
+                    // Timed out or out of memory: the cells stay missing and
+                    // are asked for again next time
+                    logger.warn("Overpass query incomplete ({}), {} cells not stored",
+                            parser.getRemark(), missing.size());
+                    partial = downloaded;
+                } else {
+                    cellStore.store(missing, downloaded);
+                    PharmacySpatialIndex.getInstance().insertAll(downloaded);
+                }
+            }
 
         } catch (Exception e) {
             logger.error("Failed to fetch pharmacies", e);
-            return new ArrayList<>();
         }
+
+        // On failure this is whatever the cells already held, possibly nothing
+        List<Pharmacy> candidates = cellStore.collect(covering, latitude, longitude, radius);
+        if (!partial.isEmpty()) {
+            // Expired cells may still hold older copies of the same pharmacies
+            Set<Pharmacy> merged = new LinkedHashSet<>(partial);
+            merged.addAll(candidates);
+            candidates = new ArrayList<>(merged);
+        }
+        List<Pharmacy> pharmacies = nearest(candidates, latitude, longitude, radius);
+        if (pharmacies.isEmpty()) {
+            // Fall back to anything seen before, e.g. loaded from the caches
+            pharmacies = PharmacySpatialIndex.getInstance()
+                    .nearest(latitude, longitude, config.getMaxMarkers(), radius);
+        }
+        logger.info("Found {} pharmacies", pharmacies.size());
+        return pharmacies;
+    }
+
+    /**
+     * The first {@code map.max.markers} pharmacies by distance, with exact
+     * distances set on those only.
+     */
+    private List<Pharmacy> nearest(List<Pharmacy> pharmacies, double lat, double lon, int radius) {
+        return new DistanceKernel(lat, lon).nearest(pharmacies, config.getMaxMarkers(), radius / 1000.0);
     }
 
     /**
      * Reverse geocoding using Nominatim.
+     * Repeat lookups come from the HTTP disk cache; the shared client spaces
+     * out real calls to respect the Nominatim usage policy.
      * ⚠️ Must NOT be called on JavaFX UI thread.
      */
     public String getAddressFromCoordinates(double latitude, double longitude) {
@@ -82,9 +261,6 @@ public class ApiService {
                     .header("User-Agent", config.getUserAgent())
                     .build();
 
-            // Respect Nominatim policy
-            Thread.sleep(1000);
-
             try (Response response = httpClient.newCall(request).execute()) {
                 if (response.isSuccessful() && response.body() != null) {
                     JsonObject json = JsonParser
@@ -108,205 +284,144 @@ public class ApiService {
        INTERNAL HELPERS
        ========================= */
 
-    private String buildOverpassQuery(double lat, double lon, int radius) {
-        return String.format(
-                "[out:json][timeout:25];" +
-                "(node[\"amenity\"=\"pharmacy\"](around:%d,%.6f,%.6f);" +
-                "way[\"amenity\"=\"pharmacy\"](around:%d,%.6f,%.6f););" +
-                "out body geom;>;out skel qt;",
-                radius, lat, lon,
-                radius, lat, lon
-        );
+    /**
+     * Positions are rounded to 3 decimals (~110 m), like the pharmacy cache keys.
+     */
+    private static String flightKey(double lat, double lon, int radius) {
+        return Math.round(lat * 1000) + ":" + Math.round(lon * 1000) + ":" + radius;
     }
 
-    private String executeOverpassQuery(String query) throws IOException {
-        String encodedQuery = URLEncoder.encode(query, StandardCharsets.UTF_8);
-        String url = config.getOverpassUrl() + "?data=" + encodedQuery;
-
-        Request request = new Request.Builder()
-                .url(url)
-                .header("User-Agent", config.getUserAgent())
-                .build();
-
-        try (Response response = httpClient.newCall(request).execute()) {
-            if (!response.isSuccessful() || response.body() == null) {
-                throw new IOException("Overpass API error: " + response.code());
-            }
-            return response.body().string();
+    /**
+     * One query for the union of the given boxes (south, west, north, east).
+     * "out body geom" already inlines way outlines, so the member nodes do not
+     * need to be recursed into and downloaded separately.
+     */
+    private String buildOverpassQuery(List<double[]> boxes) {
+        StringBuilder query = new StringBuilder("[out:json][timeout:25];(");
+        for (double[] box : boxes) {
+            String bbox = String.format(Locale.ROOT, "(%.6f,%.6f,%.6f,%.6f)",
+                    box[0], box[1], box[2], box[3]);
+            query.append("node[\"amenity\"=\"pharmacy\"]").append(bbox).append(';');
+            query.append("way[\"amenity\"=\"pharmacy\"]").append(bbox).append(';');
         }
+        return query.append(");out body geom;").toString();
     }
 
-    private List<Pharmacy> parsePharmacies(
-            String response, double userLat, double userLon) {
+    /**
+     * Executes the query and parses the response straight from the socket.
+     * Every pharmacy is returned, since whole cells are being cached; only
+     * those within the search radius are streamed to {@code onBatch}.
+     * {@code parser} tells afterwards whether the answer was complete.
+     */
+    private List<Pharmacy> executeOverpassQuery(
+            OverpassResponseParser parser, String query, boolean bypassCache,
+            double userLat, double userLon, int radius,
+            Consumer<List<Pharmacy>> onBatch) throws IOException {
 
-        List<Pharmacy> pharmacies = new ArrayList<>();
+        double radiusKm = radius / 1000.0;
 
-        try {
-            JsonArray elements = JsonParser
-                    .parseString(response)
-                    .getAsJsonObject()
-                    .getAsJsonArray("elements");
+        List<Pharmacy> pharmacies = new ArrayList<>();
+        BatchBuffer batches = onBatch != null ? new BatchBuffer(onBatch) : null;
 
-            for (JsonElement element : elements) {
-                JsonObject obj = element.getAsJsonObject();
+        // Routed to the fastest mirror, hedged to a second one if it stalls
+        HttpUrl url;
+        try (Response response = overpassPool.query(httpClient, query, config.getUserAgent(), bypassCache)) {
+            url = response.request().url();
 
-                if (!obj.has("type") || !obj.has("tags")) {
-                    continue;
-                }
+            parser.parse(response.body().charStream(), pharmacy -> {
+                pharmacy.calculateDistanceFrom(userLat, userLon);
+                pharmacies.add(pharmacy);
 
-                String type = obj.get("type").getAsString();
-                
-                // Handle both nodes (points) and ways (building shapes)
-                if ("node".equals(type)) {
-                    Pharmacy pharmacy = parsePharmacy(obj);
-                    if (pharmacy != null) {
-                        pharmacy.calculateDistanceFrom(userLat, userLon);
-                        pharmacies.add(pharmacy);
-                    }
-                } else if ("way".equals(type)) {
-                    Pharmacy pharmacy = parsePharmacyWay(obj);
-                    if (pharmacy != null) {
-                        pharmacy.calculateDistanceFrom(userLat, userLon);
-                        pharmacies.add(pharmacy);
-                    }
+                if (batches != null && pharmacy.getDistance() <= radiusKm) {
+                    batches.add(pharmacy);
                 }
-            }
-
-            pharmacies.sort(Comparator.comparingDouble(Pharmacy::getDistance));
+                return true;
+            });
+        }
 
-            int max = config.getMaxMarkers();
-            if (pharmacies.size() > max) {
-                return new ArrayList<>(pharmacies.subList(0, max));
-            }
+        if (parser.hasErrorRemark()) {
+            // Do not let the disk cache replay the truncated answer
+            HttpClientFactory.getInstance().evictCached(url);
+        }
 
-        } catch (Exception e) {
-            logger.error("Failed to parse pharmacies", e);
+        if (batches != null) {
+            batches.flush();
         }
 
         return pharmacies;
     }
 
-    private Pharmacy parsePharmacy(JsonObject obj) {
-        try {
-            String id = obj.get("id").getAsString();
-            double lat = obj.get("lat").getAsDouble();
-            double lon = obj.get("lon").getAsDouble();
-
-            JsonObject tags = obj.getAsJsonObject("tags");
-
-            String name = tags.has("name")
-                    ? tags.get("name").getAsString()
-                    : "Pharmacie";
+    /**
+     * Collects parsed pharmacies and hands them out in distance-sorted batches.
+     * The first batch is kept small so the first markers appear quickly.
+     */
+    private class BatchBuffer {
+        private static final int FIRST_BATCH_SIZE = 10;
 
-            Pharmacy pharmacy = new Pharmacy(id, name, lat, lon);
+        private final Consumer<List<Pharmacy>> consumer;
+        private final List<Pharmacy> pending = new ArrayList<>();
+        private int threshold = FIRST_BATCH_SIZE;
 
-            String address = buildAddress(tags);
-            if (address != null) {
-                pharmacy.setAddress(address);
-            }
+        BatchBuffer(Consumer<List<Pharmacy>> consumer) {
+            this.consumer = consumer;
+        }
 
-            if (tags.has("phone")) {
-                pharmacy.setPhone(tags.get("phone").getAsString());
+        void add(Pharmacy pharmacy) {
+            pending.add(pharmacy);
+            if (pending.size() >= threshold) {
+                flush();
+                threshold = Math.max(FIRST_BATCH_SIZE, config.getBatchSize());
             }
+        }
 
-            if (tags.has("opening_hours")) {
-                pharmacy.setOpeningHours(tags.get("opening_hours").getAsString());
+        void flush() {
+            if (pending.isEmpty()) {
+                return;
             }
-
-            for (String key : tags.keySet()) {
-                pharmacy.addTag(key, tags.get(key).getAsString());
+            List<Pharmacy> batch = new ArrayList<>(pending);
+            batch.sort(Comparator.comparingDouble(Pharmacy::getDistance));
+            pending.clear();
+
+            try {
+                consumer.accept(batch);
+            } catch (Exception e) {
+                logger.warn("Batch consumer failed: {}", e.getMessage());
             }
-
-            return pharmacy;
-
-        } catch (Exception e) {
-            logger.warn("Invalid pharmacy object: {}", e.getMessage());
-            return null;
         }
     }
 
     /**
-     * Parse pharmacy from a way (building shape) with geometry
+     * A running request shared by every caller asking for the same area.
      */
-    private Pharmacy parsePharmacyWay(JsonObject obj) {
-        try {
-            String id = obj.get("id").getAsString();
-            JsonObject tags = obj.getAsJsonObject("tags");
-
-            String name = tags.has("name")
-                    ? tags.get("name").getAsString()
-                    : "Pharmacie";
-
-            // Get center point (average of all coordinates)
-            double centerLat = 0;
-            double centerLon = 0;
-
-            if (obj.has("geometry")) {
-                JsonArray geometry = obj.getAsJsonArray("geometry");
-                if (geometry.size() > 0) {
-                    for (JsonElement coord : geometry) {
-                        JsonObject coordObj = coord.getAsJsonObject();
-                        centerLat += coordObj.get("lat").getAsDouble();
-                        centerLon += coordObj.get("lon").getAsDouble();
-                    }
-                    centerLat /= geometry.size();
-                    centerLon /= geometry.size();
-
-                    Pharmacy pharmacy = new Pharmacy(id, name, centerLat, centerLon);
-
-                    // Store the building geometry
-                    for (JsonElement coord : geometry) {
-                        JsonObject coordObj = coord.getAsJsonObject();
-                        pharmacy.addGeometryPoint(
-                            coordObj.get("lat").getAsDouble(),
-                            coordObj.get("lon").getAsDouble()
-                        );
-                    }
-
-                    String address = buildAddress(tags);
-                    if (address != null) {
-                        pharmacy.setAddress(address);
-                    }
+    private static class InFlightFetch {
+        final CompletableFuture<List<Pharmacy>> future = new CompletableFuture<>();
 
-                    if (tags.has("phone")) {
-                        pharmacy.setPhone(tags.get("phone").getAsString());
-                    }
-
-                    if (tags.has("opening_hours")) {
-                        pharmacy.setOpeningHours(tags.get("opening_hours").getAsString());
-                    }
+        private final List<List<Pharmacy>> delivered = new ArrayList<>();
+        private final List<Consumer<List<Pharmacy>>> listeners = new ArrayList<>();
 
-                    for (String key : tags.keySet()) {
-                        pharmacy.addTag(key, tags.get(key).getAsString());
-                    }
-
-                    return pharmacy;
-                }
+        synchronized void subscribe(Consumer<List<Pharmacy>> listener) {
+            if (listener == null) {
+                return;
             }
-
-        } catch (Exception e) {
-            logger.warn("Invalid way object: {}", e.getMessage());
+            for (List<Pharmacy> batch : delivered) {
+                deliver(listener, batch);
+            }
+            listeners.add(listener);
         }
 
-        return null;
-    }
-
-    private String buildAddress(JsonObject tags) {
-        String number = tags.has("addr:housenumber")
-                ? tags.get("addr:housenumber").getAsString()
-                : "";
-        String street = tags.has("addr:street")
-                ? tags.get("addr:street").getAsString()
-                : "";
-        String city = tags.has("addr:city")
-                ? tags.get("addr:city").getAsString()
-                : "";
-
-        String address = (number + " " + street).trim();
-        if (!city.isEmpty()) {
-            address += ", " + city;
+        synchronized void publish(List<Pharmacy> batch) {
+            delivered.add(batch);
+            for (Consumer<List<Pharmacy>> listener : listeners) {
+                deliver(listener, batch);
+            }
         }
 
-        return address.isEmpty() ? null : address;
+        private static void deliver(Consumer<List<Pharmacy>> listener, List<Pharmacy> batch) {
+            try {
+                listener.accept(batch);
+            } catch (Exception e) {
+                logger.warn("Batch listener failed: {}", e.getMessage());
+            }
+        }
     }
 }
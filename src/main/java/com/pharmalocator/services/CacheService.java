@@ -1,5 +1,7 @@
 package com.pharmalocator.services;
 
+import com.pharmalocator.config.AppConfig;
+import com.pharmalocator.models.DistanceKernel;
 import com.pharmalocator.models.Location;
 import com.pharmalocator.models.Pharmacy;
 import org.slf4j.Logger;
@@ -10,7 +12,14 @@ import java.nio.file.*;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * CacheService - Fast local caching for pharmacies and map data
@@ -21,6 +30,28 @@ import java.util.concurrent.ConcurrentHashMap;
  * - Automatic expiration (configurable)
  * - Thread-safe operations
  * - Compression support
+ *
+ * Pharmacies are stored in a versioned binary file (see
+ * {@link PharmacyCacheFile}); the small location and map state caches
+ * still use Java serialization.
+ *
+ * Every cached area stays known in memory, but only the pharmacy lists of
+ * the most recently used {@code cache.memory.max.areas} areas are kept
+ * there. Older lists are dropped and read back from the journal when a
+ * search needs them. Expired areas are swept out periodically.
+ *
+ * Nothing is read from disk in the constructor. The small location and
+ * map state files are read on a loader thread and waited for by their
+ * getters; the pharmacy journal is replayed on the flusher thread, ahead
+ * of any write, and {@link #pharmacyCacheReady()} completes once it is.
+ * Until then pharmacy lookups miss.
+ *
+ * Pharmacy entries have two ages. Younger than {@code cache.soft.ttl.minutes}
+ * they are FRESH and served as they are. Between that and
+ * {@code cache.hard.ttl.hours} they are STALE: still served, while one
+ * background refetch per area replaces them. After the hard TTL they are
+ * dropped. Areas looked up often are refetched a little before turning
+ * stale. Refetches go through the {@link Revalidator} the UI registers.
  */
 public class CacheService {
 
@@ -28,21 +59,78 @@ public class CacheService {
 
     // Cache configuration
     private static final String CACHE_DIR = "cache";
-    private static final String PHARMACY_CACHE_FILE = "pharmacies.cache";
+    private static final String PHARMACY_CACHE_FILE = "pharmacies.bin";
+    // Java-serialized format used before the binary file
+    private static final String LEGACY_PHARMACY_CACHE_FILE = "pharmacies.cache";
     private static final String LOCATION_CACHE_FILE = "location.cache";
     private static final String MAP_STATE_CACHE_FILE = "map_state.cache";
 
     // Cache expiration (default: 24 hours)
     private static final Duration CACHE_EXPIRATION = Duration.ofHours(24);
 
+    private static final int DEFAULT_SOFT_TTL_MINUTES = 60;
+    private static final int DEFAULT_REFRESH_AHEAD_HITS = 3;
+
+    // Pharmacy entries are keyed by the geohash of the search center; the
+    // shorter prefix (~5 km cells) is what a lookup scans with its neighbours
+    private static final int KEY_PRECISION = 7;
+    private static final int LOOKUP_PRECISION = 5;
+
+    // A search whose center lies this far inside a cached circle reuses it,
+    // ranked from the new center, even if the circles are the same size:
+    // a tenth of the covered radius, but at least 100 m
+    private static final double REUSE_RADIUS_FRACTION = 0.1;
+    private static final double SAME_PLACE_METERS = 100;
+
+    // Changes made within this window reach the disk in one flush
+    private static final long FLUSH_DELAY_MS = 500;
+
+    private static final int DEFAULT_MAX_RESIDENT_AREAS = 64;
+    private static final int DEFAULT_SWEEP_MINUTES = 10;
+
     // In-memory cache for fast access
-    private final Map<String, CacheEntry<List<Pharmacy>>> pharmacyCache = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<String, CacheEntry<PharmacyArea>> pharmacyCache =
+            new ConcurrentSkipListMap<>();
     private final Map<String, CacheEntry<Location>> locationCache = new ConcurrentHashMap<>();
-    private CacheEntry<MapState> mapStateCache;
+    private volatile CacheEntry<MapState> mapStateCache;
+
+    // Disk loads started by the constructor
+    private final CompletableFuture<Void> smallCachesLoaded;
+    private final CompletableFuture<Void> pharmacyCacheLoaded;
 
     // Cache directory path
     private final Path cacheDirectory;
 
+    // Append-only journal behind pharmacyCache
+    private final PharmacyCacheFile pharmacyFile;
+
+    // Areas whose pharmacy lists are in memory, least recently used first.
+    // Lists are only dropped on the flusher thread, once written.
+    private final LinkedHashMap<String, PharmacyArea> residentAreas = new LinkedHashMap<>(16, 0.75f, true);
+    private final int maxResidentAreas;
+
+    // Pharmacy entry ages: served as is, served while refetched, dropped
+    private final Duration softTtl;
+    private final Duration hardTtl;
+    // Areas with this many hits are refetched from 3/4 of the soft TTL on
+    private final Duration refreshAheadAge;
+    private final int refreshAheadHits;
+
+    private volatile Revalidator revalidator;
+    // One refetch per area at a time
+    private final Map<String, CompletableFuture<List<Pharmacy>>> revalidations = new ConcurrentHashMap<>();
+
+    // Write-behind: mutations mark what changed, the flusher thread writes it
+    private final Set<String> dirtyAreas = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean locationDirty = new AtomicBoolean();
+    private final AtomicBoolean mapStateDirty = new AtomicBoolean();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final ScheduledThreadPoolExecutor flusher = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "Cache-Flusher");
+        t.setDaemon(true);
+        return t;
+    });
+
     /**
      * Cache entry with timestamp for expiration
      */
@@ -53,8 +141,12 @@ public class CacheService {
         private final Instant timestamp;
 
         public CacheEntry(T data) {
+            this(data, Instant.now());
+        }
+
+        public CacheEntry(T data, Instant timestamp) {
             this.data = data;
-            this.timestamp = Instant.now();
+            this.timestamp = timestamp;
         }
 
         public T getData() {
@@ -70,6 +162,70 @@ public class CacheService {
         }
     }
 
+    /**
+     * Pharmacies found around a search center. {@code radiusMeters} is the
+     * radius the list is complete for: the search radius, or the distance of
+     * the farthest pharmacy when the result was truncated. {@code pharmacies}
+     * is null while the list is only on disk.
+     */
+    private static class PharmacyArea {
+        private final double latitude;
+        private final double longitude;
+        private final int radiusMeters;
+        private volatile List<Pharmacy> pharmacies;
+        // Lookups served since the area was cached, not persisted
+        private final AtomicInteger hits = new AtomicInteger();
+
+        PharmacyArea(double latitude, double longitude, int radiusMeters, List<Pharmacy> pharmacies) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.radiusMeters = radiusMeters;
+            this.pharmacies = pharmacies;
+        }
+    }
+
+    /**
+     * How fresh a cached result is.
+     */
+    public enum Freshness {
+        /** Within the soft TTL */
+        FRESH,
+        /** Past the soft TTL, still usable while being refetched */
+        STALE
+    }
+
+    /**
+     * Cached pharmacies for a search, with their freshness. {@code refresh}
+     * completes with the refetched list when a background refetch of the
+     * area was started or was already running, and is null otherwise.
+     */
+    public static class Lookup {
+        private final List<Pharmacy> pharmacies;
+        private final Freshness freshness;
+        private final CompletableFuture<List<Pharmacy>> refresh;
+
+        Lookup(List<Pharmacy> pharmacies, Freshness freshness, CompletableFuture<List<Pharmacy>> refresh) {
+            this.pharmacies = pharmacies;
+            this.freshness = freshness;
+            this.refresh = refresh;
+        }
+
+        public List<Pharmacy> getPharmacies() { return pharmacies; }
+        public Freshness getFreshness() { return freshness; }
+        public boolean isStale() { return freshness == Freshness.STALE; }
+        public CompletableFuture<List<Pharmacy>> getRefresh() { return refresh; }
+    }
+
+    /**
+     * Fetches the pharmacies around a cached area's center with the default
+     * search radius, from the source rather than from another cache layer.
+     * The returned future should complete with an empty list rather than
+     * exceptionally when the fetch fails.
+     */
+    public interface Revalidator {
+        CompletableFuture<List<Pharmacy>> fetch(double latitude, double longitude);
+    }
+
     /**
      * Map state for caching map view
      */
@@ -99,9 +255,38 @@ public class CacheService {
      * Constructor - Initialize cache directory
      */
     public CacheService() {
+        AppConfig config = AppConfig.getInstance();
         this.cacheDirectory = Paths.get(CACHE_DIR);
+        this.pharmacyFile = new PharmacyCacheFile(cacheDirectory.resolve(PHARMACY_CACHE_FILE),
+                config.getBooleanProperty("cache.file.compress", true));
+        this.maxResidentAreas = Math.max(1,
+                config.getIntProperty("cache.memory.max.areas", DEFAULT_MAX_RESIDENT_AREAS));
+        this.hardTtl = Duration.ofHours(Math.max(1,
+                config.getIntProperty("cache.hard.ttl.hours", (int) CACHE_EXPIRATION.toHours())));
+        Duration soft = Duration.ofMinutes(Math.max(1,
+                config.getIntProperty("cache.soft.ttl.minutes", DEFAULT_SOFT_TTL_MINUTES)));
+        this.softTtl = soft.compareTo(hardTtl) < 0 ? soft : hardTtl;
+        this.refreshAheadAge = softTtl.multipliedBy(3).dividedBy(4);
+        this.refreshAheadHits = Math.max(1,
+                config.getIntProperty("cache.refresh.ahead.hits", DEFAULT_REFRESH_AHEAD_HITS));
         initializeCacheDirectory();
-        loadCachesFromDisk();
+
+        // Location and map state first, on their own thread, so restoring
+        // the last view does not wait for the pharmacies
+        smallCachesLoaded = CompletableFuture.runAsync(this::loadSmallCachesFromDisk, r -> {
+            Thread t = new Thread(r, "Cache-Loader");
+            t.setDaemon(true);
+            t.start();
+        }).exceptionally(e -> {
+            logger.error("Failed to load location and map state caches", e);
+            return null;
+        });
+        // Queued before any flush, compaction or sweep
+        pharmacyCacheLoaded = CompletableFuture.runAsync(this::loadPharmacyCacheFromDisk, flusher);
+
+        long sweepMinutes = Math.max(1,
+                config.getIntProperty("cache.sweep.interval.minutes", DEFAULT_SWEEP_MINUTES));
+        flusher.scheduleWithFixedDelay(this::clearExpiredCaches, sweepMinutes, sweepMinutes, TimeUnit.MINUTES);
     }
 
     /**
@@ -118,22 +303,35 @@ public class CacheService {
         }
     }
 
+    private void loadSmallCachesFromDisk() {
+        long start = System.nanoTime();
+        loadLocationCacheFromDisk();
+        loadMapStateCacheFromDisk();
+        logger.info("Location and map state caches loaded in {} ms", (System.nanoTime() - start) / 1_000_000);
+    }
+
     /**
-     * Load all caches from disk on startup
+     * Completes when the pharmacy cache has been read from disk. Lookups
+     * made before that find nothing.
      */
-    private void loadCachesFromDisk() {
-        logger.info("Loading caches from disk...");
-
-        // Load pharmacy cache
-        loadPharmacyCacheFromDisk();
+    public CompletableFuture<Void> pharmacyCacheReady() {
+        return pharmacyCacheLoaded;
+    }
 
-        // Load location cache
-        loadLocationCacheFromDisk();
+    public boolean isPharmacyCacheReady() {
+        return pharmacyCacheLoaded.isDone();
+    }
 
-        // Load map state cache
-        loadMapStateCacheFromDisk();
+    /**
+     * Completes when the location and map state caches have been read from
+     * disk. Their getters find nothing before that.
+     */
+    public CompletableFuture<Void> locationCachesReady() {
+        return smallCachesLoaded;
+    }
 
-        logger.info("Cache loading complete");
+    public boolean isLocationCachesReady() {
+        return smallCachesLoaded.isDone();
     }
 
     // ========================
@@ -141,85 +339,395 @@ public class CacheService {
     // ========================
 
     /**
-     * Cache pharmacies for a specific location
+     * Cache pharmacies found with the default search radius
      */
     public void cachePharmacies(double lat, double lon, List<Pharmacy> pharmacies) {
+        cachePharmacies(lat, lon, AppConfig.getInstance().getDefaultSearchRadius(), pharmacies);
+    }
+
+    /**
+     * Cache pharmacies found within {@code radiusMeters} of a location
+     */
+    public void cachePharmacies(double lat, double lon, int radiusMeters, List<Pharmacy> pharmacies) {
         String key = generateLocationKey(lat, lon);
-        CacheEntry<List<Pharmacy>> entry = new CacheEntry<>(new ArrayList<>(pharmacies));
+        PharmacyArea area = new PharmacyArea(lat, lon,
+                coveredRadius(lat, lon, radiusMeters, pharmacies), new ArrayList<>(pharmacies));
 
         // Store in memory
+        CacheEntry<PharmacyArea> entry = new CacheEntry<>(area);
         pharmacyCache.put(key, entry);
+        PharmacySpatialIndex.getInstance().insertAll(pharmacies);
 
-        // Persist to disk
-        savePharmacyCacheToDisk();
+        // Persisted by the flusher, which keeps the list in memory until then
+        markAreaDirty(key);
+        makeResident(key, area);
 
-        logger.info("Cached {} pharmacies for location: {}", pharmacies.size(), key);
+        logger.info("Cached {} pharmacies for location: {} ({} m)",
+                pharmacies.size(), key, area.radiusMeters);
     }
 
     /**
-     * Get cached pharmacies for a location
+     * Get cached pharmacies around a location (default search radius)
      */
     public List<Pharmacy> getCachedPharmacies(double lat, double lon) {
-        String key = generateLocationKey(lat, lon);
-        CacheEntry<List<Pharmacy>> entry = pharmacyCache.get(key);
+        return getCachedPharmacies(lat, lon, AppConfig.getInstance().getDefaultSearchRadius());
+    }
 
-        if (entry == null) {
-            logger.debug("No cache found for location: {}", key);
+    /**
+     * Get cached pharmacies for a search circle, fresh or stale. Never
+     * starts a refetch; see {@link #lookupPharmacies(double, double, int)}.
+     */
+    public List<Pharmacy> getCachedPharmacies(double lat, double lon, int radiusMeters) {
+        Lookup lookup = lookup(lat, lon, radiusMeters, false);
+        return lookup != null ? lookup.getPharmacies() : null;
+    }
+
+    /**
+     * Cached pharmacies around a location (default search radius), with
+     * their freshness
+     */
+    public Lookup lookupPharmacies(double lat, double lon) {
+        return lookupPharmacies(lat, lon, AppConfig.getInstance().getDefaultSearchRadius());
+    }
+
+    /**
+     * Cached pharmacies for a search circle, with their freshness. A stale
+     * hit, or a fresh one on a busy area close to turning stale, starts a
+     * background refetch of the area unless one is already running.
+     *
+     * @return the cached result, or null on a miss
+     */
+    public Lookup lookupPharmacies(double lat, double lon, int radiusMeters) {
+        return lookup(lat, lon, radiusMeters, true);
+    }
+
+    /**
+     * Entries whose centers lie in the query's geohash cell or one of its
+     * neighbours are candidates. An entry is used if its circle contains the
+     * requested one, or if the query's center is within the reuse distance
+     * of its center. Searches all use the same radius, so in practice it is
+     * the reuse distance that lets a user who moved a little hit the cache.
+     * The result is ranked from the query's center.
+     */
+    private Lookup lookup(double lat, double lon, int radiusMeters, boolean revalidate) {
+        if (!isPharmacyCacheReady()) {
+            logger.debug("Pharmacy cache still loading, treating as a miss");
             return null;
         }
 
-        if (entry.isExpired(CACHE_EXPIRATION)) {
-            logger.info("Cache expired for location: {}", key);
-            pharmacyCache.remove(key);
+        CacheEntry<PharmacyArea> best = null;
+        String bestKey = null;
+        double bestDistance = Double.MAX_VALUE;
+
+        for (String cell : new LinkedHashSet<>(
+                Arrays.asList(Geohash.withNeighbours(lat, lon, LOOKUP_PRECISION)))) {
+
+            for (Map.Entry<String, CacheEntry<PharmacyArea>> e
+                    : pharmacyCache.subMap(cell, cell + Character.MAX_VALUE).entrySet()) {
+
+                CacheEntry<PharmacyArea> entry = e.getValue();
+                if (entry.isExpired(hardTtl)) {
+                    removeArea(e.getKey(), entry);
+                    continue;
+                }
+
+                PharmacyArea area = entry.getData();
+                double distance = Location.calculateDistance(
+                        lat, lon, area.latitude, area.longitude) * 1000;
+                boolean covers = distance + radiusMeters <= area.radiusMeters;
+
+                if ((covers || distance <= reuseDistance(area)) && distance < bestDistance) {
+                    best = entry;
+                    bestKey = e.getKey();
+                    bestDistance = distance;
+                }
+            }
+        }
+
+        if (best == null) {
+            logger.debug("No cache found for location: {}", generateLocationKey(lat, lon));
             return null;
         }
 
-        logger.info("Cache HIT! Retrieved {} pharmacies for location: {}",
-                   entry.getData().size(), key);
-        return new ArrayList<>(entry.getData());
+        List<Pharmacy> pharmacies = pharmaciesOf(bestKey, best.getData());
+        if (pharmacies == null) {
+            return null;
+        }
+        // Possibly searched from elsewhere: keep what lies in the requested
+        // circle, with distances from its center
+        pharmacies = new DistanceKernel(lat, lon)
+                .nearest(pharmacies, pharmacies.size(), radiusMeters / 1000.0);
+
+        PharmacyArea area = best.getData();
+        int hits = area.hits.incrementAndGet();
+        Freshness freshness = best.isExpired(softTtl) ? Freshness.STALE : Freshness.FRESH;
+
+        CompletableFuture<List<Pharmacy>> refresh = null;
+        if (revalidate && (freshness == Freshness.STALE
+                || (hits >= refreshAheadHits && best.isExpired(refreshAheadAge)))) {
+            refresh = revalidate(bestKey, area);
+        }
+
+        logger.info("Cache HIT! Retrieved {} {} pharmacies from {} ({} m away)",
+                   pharmacies.size(), freshness, bestKey, Math.round(bestDistance));
+        return new Lookup(new ArrayList<>(pharmacies), freshness, refresh);
     }
 
     /**
-     * Save pharmacy cache to disk
+     * Register what refetches stale areas. Without one, stale entries are
+     * served until they expire.
      */
-    private void savePharmacyCacheToDisk() {
-        Path filePath = cacheDirectory.resolve(PHARMACY_CACHE_FILE);
-        try (ObjectOutputStream oos = new ObjectOutputStream(
-                new BufferedOutputStream(Files.newOutputStream(filePath)))) {
-            oos.writeObject(pharmacyCache);
-            logger.debug("Pharmacy cache saved to disk");
+    public void setRevalidator(Revalidator revalidator) {
+        this.revalidator = revalidator;
+    }
+
+    /**
+     * Refetch an area in the background and cache the result, joining the
+     * refetch already running for it if there is one.
+     *
+     * @return completes with the fetched list, or null without a revalidator
+     */
+    private CompletableFuture<List<Pharmacy>> revalidate(String key, PharmacyArea area) {
+        Revalidator fetcher = revalidator;
+        if (fetcher == null) {
+            return null;
+        }
+
+        CompletableFuture<List<Pharmacy>> started = new CompletableFuture<>();
+        CompletableFuture<List<Pharmacy>> running = revalidations.putIfAbsent(key, started);
+        if (running != null) {
+            return running;
+        }
+
+        logger.info("Refreshing pharmacy cache entry {} in the background", key);
+        CompletableFuture<List<Pharmacy>> fetch;
+        try {
+            fetch = fetcher.fetch(area.latitude, area.longitude);
+        } catch (RuntimeException e) {
+            fetch = CompletableFuture.failedFuture(e);
+        }
+
+        fetch.whenComplete((list, error) -> {
+            if (error != null) {
+                logger.warn("Refreshing pharmacy cache entry {} failed: {}", key, error.getMessage());
+            } else if (list != null && !list.isEmpty()) {
+                cachePharmacies(area.latitude, area.longitude, list);
+            }
+            // Stale data stays until the hard TTL if the refetch found nothing
+            revalidations.remove(key, started);
+            if (error != null) {
+                started.completeExceptionally(error);
+            } else {
+                started.complete(list);
+            }
+        });
+        return started;
+    }
+
+    /**
+     * How far from an area's center a search may start and still be served
+     * from it. The list misses at most what lies within this distance of the
+     * covered circle's edge.
+     */
+    private static double reuseDistance(PharmacyArea area) {
+        return Math.max(SAME_PLACE_METERS, area.radiusMeters * REUSE_RADIUS_FRACTION);
+    }
+
+    /**
+     * Radius the list is complete for. A list cut at {@code map.max.markers}
+     * only covers up to its farthest pharmacy.
+     */
+    private int coveredRadius(double lat, double lon, int radiusMeters, List<Pharmacy> pharmacies) {
+        if (pharmacies.size() < AppConfig.getInstance().getMaxMarkers()) {
+            return radiusMeters;
+        }
+
+        double farthest = 0;
+        for (Pharmacy pharmacy : pharmacies) {
+            farthest = Math.max(farthest, Location.calculateDistance(
+                    lat, lon, pharmacy.getLatitude(), pharmacy.getLongitude()));
+        }
+        return (int) Math.min(radiusMeters, farthest * 1000);
+    }
+
+    /**
+     * Write the current state of each dirty area to the journal: an entry if
+     * it is cached, a tombstone if it was removed. However often an area
+     * changed since the last flush, it costs one record.
+     */
+    private void flushPharmacyCache() {
+        if (dirtyAreas.isEmpty()) {
+            return;
+        }
+
+        int written = 0;
+        try {
+            for (Iterator<String> it = dirtyAreas.iterator(); it.hasNext(); ) {
+                String key = it.next();
+                it.remove();
+
+                CacheEntry<PharmacyArea> entry = pharmacyCache.get(key);
+                // Dirty areas are never dropped from memory, see trimResidentAreas
+                if (entry != null) {
+                    pharmacyFile.append(toStored(key, entry));
+                } else {
+                    pharmacyFile.appendRemove(key);
+                }
+                written++;
+            }
+
+            if (pharmacyFile.needsCompaction()) {
+                compactJournal();
+            }
+            logger.debug("Pharmacy cache: {} entries written to disk", written);
         } catch (IOException e) {
             logger.error("Failed to save pharmacy cache to disk", e);
         }
     }
 
     /**
-     * Load pharmacy cache from disk
+     * Rewrite the journal with only its live entries.
      */
-    @SuppressWarnings("unchecked")
-    private void loadPharmacyCacheFromDisk() {
-        Path filePath = cacheDirectory.resolve(PHARMACY_CACHE_FILE);
-        if (!Files.exists(filePath)) {
-            logger.debug("No pharmacy cache file found");
-            return;
+    private void compactJournal() throws IOException {
+        pharmacyFile.compact();
+    }
+
+    private static PharmacyCacheFile.StoredArea toStored(String key, CacheEntry<PharmacyArea> entry) {
+        PharmacyArea area = entry.getData();
+        return new PharmacyCacheFile.StoredArea(key, entry.getTimestamp().toEpochMilli(),
+                area.latitude, area.longitude, area.radiusMeters, area.pharmacies);
+    }
+
+    /**
+     * Pharmacy list of an area, read back from the journal if it was
+     * dropped from memory.
+     *
+     * @return the list, or null if it could not be read
+     */
+    private List<Pharmacy> pharmaciesOf(String key, PharmacyArea area) {
+        List<Pharmacy> pharmacies = area.pharmacies;
+        if (pharmacies == null) {
+            try {
+                PharmacyCacheFile.StoredArea stored = pharmacyFile.readAt(key);
+                if (stored == null) {
+                    logger.warn("Pharmacy cache entry {} is missing from disk", key);
+                    return null;
+                }
+                pharmacies = stored.pharmacies;
+                area.pharmacies = pharmacies;
+                logger.debug("Pharmacy cache entry {} read back from disk", key);
+            } catch (IOException e) {
+                logger.error("Failed to read pharmacy cache entry {} from disk", key, e);
+                return null;
+            }
         }
+        makeResident(key, area);
+        return pharmacies;
+    }
 
-        try (ObjectInputStream ois = new ObjectInputStream(
-                new BufferedInputStream(Files.newInputStream(filePath)))) {
-            Map<String, CacheEntry<List<Pharmacy>>> loadedCache =
-                (Map<String, CacheEntry<List<Pharmacy>>>) ois.readObject();
+    /**
+     * Mark an area's list as most recently used.
+     */
+    private void makeResident(String key, PharmacyArea area) {
+        boolean over;
+        synchronized (residentAreas) {
+            residentAreas.put(key, area);
+            over = residentAreas.size() > maxResidentAreas;
+        }
+        if (over) {
+            // The flush trims the lists once they are safely on disk
+            scheduleFlush();
+        }
+    }
 
-            // Remove expired entries
-            loadedCache.entrySet().removeIf(entry ->
-                entry.getValue().isExpired(CACHE_EXPIRATION));
+    /**
+     * Drop the least recently used lists beyond the budget. Areas not yet
+     * written are skipped: their list is the only copy. Runs on the flusher
+     * thread only, after the dirty areas have been written.
+     */
+    private void trimResidentAreas() {
+        int dropped = 0;
+        synchronized (residentAreas) {
+            Iterator<Map.Entry<String, PharmacyArea>> it = residentAreas.entrySet().iterator();
+            while (residentAreas.size() > maxResidentAreas && it.hasNext()) {
+                Map.Entry<String, PharmacyArea> e = it.next();
+                if (!dirtyAreas.contains(e.getKey())) {
+                    e.getValue().pharmacies = null;
+                    it.remove();
+                    dropped++;
+                }
+            }
+        }
+        if (dropped > 0) {
+            logger.debug("Dropped {} pharmacy lists from memory", dropped);
+        }
+    }
 
-            pharmacyCache.putAll(loadedCache);
-            logger.info("Loaded {} pharmacy cache entries from disk", pharmacyCache.size());
-        } catch (IOException | ClassNotFoundException e) {
+    private void removeArea(String key, CacheEntry<PharmacyArea> entry) {
+        if (pharmacyCache.remove(key, entry)) {
+            synchronized (residentAreas) {
+                residentAreas.remove(key, entry.getData());
+            }
+            markAreaDirty(key);
+        }
+    }
+
+    /**
+     * Load pharmacy cache from disk by replaying the journal
+     */
+    private void loadPharmacyCacheFromDisk() {
+        deleteLegacyPharmacyCache();
+
+        long start = System.nanoTime();
+        try {
+            Collection<PharmacyCacheFile.StoredArea> stored = pharmacyFile.open().values();
+
+            // The journal lists areas oldest write first: keep the newest lists
+            int skipLists = stored.size() - maxResidentAreas;
+            for (PharmacyCacheFile.StoredArea area : stored) {
+                CacheEntry<PharmacyArea> entry = new CacheEntry<>(
+                        new PharmacyArea(area.latitude, area.longitude, area.radiusMeters, area.pharmacies),
+                        Instant.ofEpochMilli(area.savedAt));
+
+                if (entry.isExpired(hardTtl)) {
+                    pharmacyFile.appendRemove(area.key);
+                } else if (pharmacyCache.putIfAbsent(area.key, entry) == null) {
+                    // Areas cached while loading are newer and kept
+                    PharmacySpatialIndex.getInstance().insertAll(area.pharmacies);
+                    if (skipLists > 0) {
+                        entry.getData().pharmacies = null;
+                    } else {
+                        synchronized (residentAreas) {
+                            residentAreas.putIfAbsent(area.key, entry.getData());
+                        }
+                    }
+                }
+                skipLists--;
+            }
+            logger.info("Loaded {} pharmacy cache entries from disk in {} ms ({} in memory)",
+                    pharmacyCache.size(), (System.nanoTime() - start) / 1_000_000, getStats().getResidentPharmacyEntries());
+
+            if (pharmacyFile.needsCompaction()) {
+                compactJournal();
+            }
+        } catch (IOException e) {
             logger.error("Failed to load pharmacy cache from disk", e);
         }
     }
 
+    /**
+     * Pharmacies cached in the Java-serialized format are simply fetched again.
+     */
+    private void deleteLegacyPharmacyCache() {
+        try {
+            if (Files.deleteIfExists(cacheDirectory.resolve(LEGACY_PHARMACY_CACHE_FILE))) {
+                logger.info("Removed pharmacy cache file of the previous format");
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to remove old pharmacy cache file", e);
+        }
+    }
+
     // ========================
     // LOCATION CACHE
     // ========================
@@ -230,12 +738,13 @@ public class CacheService {
     public void cacheUserLocation(Location location) {
         CacheEntry<Location> entry = new CacheEntry<>(location);
         locationCache.put("user_location", entry);
-        saveLocationCacheToDisk();
+        locationDirty.set(true);
+        scheduleFlush();
         logger.info("Cached user location: {}, {}", location.getLatitude(), location.getLongitude());
     }
 
     /**
-     * Get cached user location
+     * Get cached user location; null until {@link #locationCachesReady()}
      */
     public Location getCachedUserLocation() {
         CacheEntry<Location> entry = locationCache.get("user_location");
@@ -259,10 +768,8 @@ public class CacheService {
      * Save location cache to disk
      */
     private void saveLocationCacheToDisk() {
-        Path filePath = cacheDirectory.resolve(LOCATION_CACHE_FILE);
-        try (ObjectOutputStream oos = new ObjectOutputStream(
-                new BufferedOutputStream(Files.newOutputStream(filePath)))) {
-            oos.writeObject(locationCache);
+        try {
+            writeObjectAtomically(cacheDirectory.resolve(LOCATION_CACHE_FILE), new HashMap<>(locationCache));
             logger.debug("Location cache saved to disk");
         } catch (IOException e) {
             logger.error("Failed to save location cache to disk", e);
@@ -289,7 +796,8 @@ public class CacheService {
             loadedCache.entrySet().removeIf(entry ->
                 entry.getValue().isExpired(CACHE_EXPIRATION));
 
-            locationCache.putAll(loadedCache);
+            // Entries cached while loading are newer and kept
+            loadedCache.forEach(locationCache::putIfAbsent);
             logger.info("Loaded {} location cache entries from disk", locationCache.size());
         } catch (IOException | ClassNotFoundException e) {
             logger.error("Failed to load location cache from disk", e);
@@ -306,12 +814,13 @@ public class CacheService {
     public void cacheMapState(double lat, double lon, int zoom, String lastSearch) {
         MapState state = new MapState(lat, lon, zoom, lastSearch);
         mapStateCache = new CacheEntry<>(state);
-        saveMapStateCacheToDisk();
+        mapStateDirty.set(true);
+        scheduleFlush();
         logger.info("Cached map state: {}, {} @ zoom {}", lat, lon, zoom);
     }
 
     /**
-     * Get cached map state
+     * Get cached map state; null until {@link #locationCachesReady()}
      */
     public MapState getCachedMapState() {
         if (mapStateCache == null) {
@@ -333,10 +842,8 @@ public class CacheService {
      * Save map state cache to disk
      */
     private void saveMapStateCacheToDisk() {
-        Path filePath = cacheDirectory.resolve(MAP_STATE_CACHE_FILE);
-        try (ObjectOutputStream oos = new ObjectOutputStream(
-                new BufferedOutputStream(Files.newOutputStream(filePath)))) {
-            oos.writeObject(mapStateCache);
+        try {
+            writeObjectAtomically(cacheDirectory.resolve(MAP_STATE_CACHE_FILE), mapStateCache);
             logger.debug("Map state cache saved to disk");
         } catch (IOException e) {
             logger.error("Failed to save map state cache to disk", e);
@@ -356,13 +863,13 @@ public class CacheService {
 
         try (ObjectInputStream ois = new ObjectInputStream(
                 new BufferedInputStream(Files.newInputStream(filePath)))) {
-            mapStateCache = (CacheEntry<MapState>) ois.readObject();
+            CacheEntry<MapState> loaded = (CacheEntry<MapState>) ois.readObject();
 
             // Check expiration
-            if (mapStateCache.isExpired(Duration.ofDays(7))) {
+            if (loaded.isExpired(Duration.ofDays(7))) {
                 logger.info("Map state cache expired on load");
-                mapStateCache = null;
-            } else {
+            } else if (mapStateCache == null) {
+                mapStateCache = loaded;
                 logger.info("Loaded map state cache from disk");
             }
         } catch (IOException | ClassNotFoundException e) {
@@ -370,39 +877,157 @@ public class CacheService {
         }
     }
 
+    // ========================
+    // WRITE-BEHIND
+    // ========================
+
+    private void markAreaDirty(String key) {
+        dirtyAreas.add(key);
+        scheduleFlush();
+    }
+
+    /**
+     * Flush shortly, unless a flush is already pending.
+     */
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            try {
+                flusher.schedule(this::flush, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shutting down: the final flush picks the change up
+                flushScheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * Write everything marked dirty. Runs on the flusher thread only.
+     */
+    private void flush() {
+        // Changes from here on schedule the next flush
+        flushScheduled.set(false);
+
+        flushPharmacyCache();
+        trimResidentAreas();
+        if (locationDirty.getAndSet(false)) {
+            saveLocationCacheToDisk();
+        }
+        if (mapStateDirty.getAndSet(false)) {
+            saveMapStateCacheToDisk();
+        }
+    }
+
+    /**
+     * Write pending changes and close the cache files, waiting at most
+     * {@code deadline} for the disk.
+     */
+    public void shutdown(Duration deadline) {
+        // The final flush covers whatever a pending one would have written
+        flusher.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        flusher.execute(this::flush);
+        flusher.shutdown();
+        try {
+            if (!flusher.awaitTermination(deadline.toMillis(), TimeUnit.MILLISECONDS)) {
+                logger.warn("Cache flush did not finish within {} ms", deadline.toMillis());
+                flusher.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            pharmacyFile.close();
+        } catch (IOException e) {
+            logger.error("Failed to close pharmacy cache file", e);
+        }
+        logger.info("Cache service shut down");
+    }
+
+    public void shutdown() {
+        shutdown(Duration.ofSeconds(3));
+    }
+
     // ========================
     // UTILITY METHODS
     // ========================
 
     /**
-     * Generate cache key for a location (rounded to ~100m precision)
+     * Serialize to a temporary file and rename it over {@code target}, so a
+     * crash leaves either the old or the new file, never half of one.
+     */
+    private void writeObjectAtomically(Path target, Object value) throws IOException {
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (ObjectOutputStream oos = new ObjectOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            oos.writeObject(value);
+        }
+        PharmacyCacheFile.moveAtomically(tmp, target);
+    }
+
+    /**
+     * Generate cache key for a location: its geohash (~150 m cells)
      */
     private String generateLocationKey(double lat, double lon) {
-        // Round to 3 decimal places (~100m precision)
-        return String.format("%.3f,%.3f", lat, lon);
+        return Geohash.encode(lat, lon, KEY_PRECISION);
     }
 
     /**
      * Clear all caches
      */
     public void clearAllCaches() {
+        boolean loading = !isPharmacyCacheReady();
+
+        if (!isLocationCachesReady()) {
+            // Drop what the load adds after the clear below
+            smallCachesLoaded.thenRun(() -> {
+                locationCache.clear();
+                mapStateCache = null;
+            });
+        }
+
         pharmacyCache.clear();
+        synchronized (residentAreas) {
+            residentAreas.clear();
+        }
         locationCache.clear();
         mapStateCache = null;
 
-        // Delete cache files
-        deleteAllCacheFiles();
+        dirtyAreas.clear();
+        locationDirty.set(false);
+        mapStateDirty.set(false);
+
+        // Same thread as the flushes and the initial load, so none can run
+        // in between
+        flusher.execute(() -> {
+            if (loading) {
+                // Drop what the load added after the clear above
+                pharmacyCache.clear();
+                synchronized (residentAreas) {
+                    residentAreas.clear();
+                }
+            }
+            try {
+                pharmacyFile.reset();
+            } catch (IOException e) {
+                logger.error("Failed to clear pharmacy cache file", e);
+            }
+            deleteAllCacheFiles();
+        });
 
         logger.info("All caches cleared");
     }
 
     /**
-     * Clear expired caches only
+     * Clear expired caches only. Also runs every
+     * {@code cache.sweep.interval.minutes} on the flusher thread.
      */
     public void clearExpiredCaches() {
         // Remove expired pharmacy caches
-        pharmacyCache.entrySet().removeIf(entry ->
-            entry.getValue().isExpired(CACHE_EXPIRATION));
+        pharmacyCache.forEach((key, entry) -> {
+            if (entry.isExpired(hardTtl)) {
+                removeArea(key, entry);
+            }
+        });
 
         // Remove expired location caches
         locationCache.entrySet().removeIf(entry ->
@@ -413,7 +1038,13 @@ public class CacheService {
             mapStateCache = null;
         }
 
-        logger.info("Expired caches cleared");
+        // Pharmacies indexed longer ago than the hard TTL
+        int unindexed = PharmacySpatialIndex.getInstance().evictOlderThan(hardTtl.toMillis());
+        if (unindexed > 0) {
+            logger.debug("Dropped {} expired pharmacies from the spatial index", unindexed);
+        }
+
+        logger.debug("Expired caches cleared");
     }
 
     /**
@@ -421,7 +1052,7 @@ public class CacheService {
      */
     private void deleteAllCacheFiles() {
         try {
-            Files.deleteIfExists(cacheDirectory.resolve(PHARMACY_CACHE_FILE));
+            Files.deleteIfExists(cacheDirectory.resolve(LEGACY_PHARMACY_CACHE_FILE));
             Files.deleteIfExists(cacheDirectory.resolve(LOCATION_CACHE_FILE));
             Files.deleteIfExists(cacheDirectory.resolve(MAP_STATE_CACHE_FILE));
             logger.info("Cache files deleted");
@@ -435,10 +1066,14 @@ public class CacheService {
      */
     public CacheStats getStats() {
         int pharmacyCacheCount = pharmacyCache.size();
+        int residentCount;
+        synchronized (residentAreas) {
+            residentCount = residentAreas.size();
+        }
         int locationCacheCount = locationCache.size();
         boolean hasMapState = mapStateCache != null;
 
-        return new CacheStats(pharmacyCacheCount, locationCacheCount, hasMapState);
+        return new CacheStats(pharmacyCacheCount, residentCount, locationCacheCount, hasMapState);
     }
 
     /**
@@ -446,23 +1081,27 @@ public class CacheService {
      */
     public static class CacheStats {
         private final int pharmacyCacheEntries;
+        private final int residentPharmacyEntries;
         private final int locationCacheEntries;
         private final boolean hasMapState;
 
-        public CacheStats(int pharmacyCacheEntries, int locationCacheEntries, boolean hasMapState) {
+        public CacheStats(int pharmacyCacheEntries, int residentPharmacyEntries,
+                          int locationCacheEntries, boolean hasMapState) {
             this.pharmacyCacheEntries = pharmacyCacheEntries;
+            this.residentPharmacyEntries = residentPharmacyEntries;
             this.locationCacheEntries = locationCacheEntries;
             this.hasMapState = hasMapState;
         }
 
         public int getPharmacyCacheEntries() { return pharmacyCacheEntries; }
+        public int getResidentPharmacyEntries() { return residentPharmacyEntries; }
         public int getLocationCacheEntries() { return locationCacheEntries; }
         public boolean hasMapState() { return hasMapState; }
 
         @Override
         public String toString() {
-            return String.format("CacheStats{pharmacies=%d, locations=%d, mapState=%s}",
-                               pharmacyCacheEntries, locationCacheEntries, hasMapState);
+            return String.format("CacheStats{pharmacies=%d (%d in memory), locations=%d, mapState=%s}",
+                               pharmacyCacheEntries, residentPharmacyEntries, locationCacheEntries, hasMapState);
         }
     }
 }
@@ -1,33 +1,81 @@
 package com.pharmalocator.services;
 
 import com.pharmalocator.config.AppConfig;
+import com.pharmalocator.models.DistanceKernel;
 import com.pharmalocator.models.Pharmacy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.sqlite.SQLiteConfig;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Service responsible for SQLite database operations:
  * - Favorites
  * - Cached pharmacies
  * - Search history
+ *
+ * All writes go through one writer thread that owns the only writable
+ * connection, so writes are serialized in submission order and never race
+ * each other for the database lock. Reads run on a small pool of read-only
+ * connections; under WAL they see the last committed state and never wait
+ * for the writer.
+ *
+ * Every operation has an asynchronous variant returning a
+ * {@link CompletableFuture}, for callers on the FX thread, and a blocking
+ * variant that waits for it.
  */
 public class DatabaseService {
 
     private static final Logger logger =
             LoggerFactory.getLogger(DatabaseService.class);
 
+    private static final double METERS_PER_DEGREE = 111_320.0;
+
+    private static final long MAINTENANCE_INITIAL_DELAY_MINUTES = 2;
+
     private static DatabaseService instance;
 
     private final AppConfig config;
-    private Connection connection;
+
+    private volatile Session writer;
+    private final BlockingQueue<Session> readers;
+    private final ExecutorService writeExecutor;
+    private final ExecutorService readExecutor;
+
+    private final ScheduledExecutorService maintenanceScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "db-maintenance");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
 
     public DatabaseService() {
         this.config = AppConfig.getInstance();
-        initializeDatabase();
+
+        int readerCount = Math.max(1, config.getIntProperty("db.read.pool.size", 2));
+        this.readers = new ArrayBlockingQueue<>(readerCount);
+        this.writeExecutor = Executors.newSingleThreadExecutor(daemonThreads("db-writer"));
+        this.readExecutor = Executors.newFixedThreadPool(readerCount, daemonThreads("db-reader"));
+
+        initializeDatabase(readerCount);
     }
 
     public static synchronized DatabaseService getInstance() {
@@ -41,18 +89,54 @@ public class DatabaseService {
        INITIALIZATION
        ========================= */
 
-    private void initializeDatabase() {
+    private void initializeDatabase(int readerCount) {
+        String dbPath = config.getDatabasePath();
         try {
-            String dbPath = config.getDatabasePath();
-            connection = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
-            createTables();
-            logger.info("Database initialized at {}", dbPath);
+            // The schema must exist before the read-only connections open
+            writer = new Session(openConnection(dbPath, false));
+            createTables(writer.connection);
+
+            for (int i = 0; i < readerCount; i++) {
+                readers.add(new Session(openConnection(dbPath, true)));
+            }
+            logger.info("Database initialized at {} ({} readers)", dbPath, readerCount);
         } catch (SQLException e) {
             logger.error("Database initialization failed", e);
         }
     }
 
-    private void createTables() throws SQLException {
+    /**
+     * WAL lets readers and the writer proceed concurrently and turns each
+     * commit into an append; with synchronous=NORMAL a commit no longer
+     * waits for an fsync (only a checkpoint does). The busy timeout covers
+     * the short window in which a checkpoint locks out readers.
+     */
+    private Connection openConnection(String dbPath, boolean readOnly) throws SQLException {
+        SQLiteConfig sqlite = new SQLiteConfig();
+        sqlite.setReadOnly(readOnly);
+        sqlite.setBusyTimeout(config.getIntProperty("db.busy.timeout.ms", 5000));
+
+        Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbPath, sqlite.toProperties());
+
+        long cacheKb = config.getIntProperty("db.page.cache.kb", 8192);
+        long mmapBytes = config.getIntProperty("db.mmap.size.mb", 64) * 1024L * 1024L;
+
+        try (Statement stmt = conn.createStatement()) {
+            if (!readOnly) {
+                // Only takes effect on a new database; see runMaintenance
+                stmt.execute("PRAGMA auto_vacuum = INCREMENTAL");
+                stmt.execute("PRAGMA journal_mode = WAL");
+                stmt.execute("PRAGMA synchronous = NORMAL");
+            }
+            // Negative cache_size is in KiB rather than pages
+            stmt.execute("PRAGMA cache_size = -" + cacheKb);
+            stmt.execute("PRAGMA mmap_size = " + mmapBytes);
+            stmt.execute("PRAGMA temp_store = MEMORY");
+        }
+        return conn;
+    }
+
+    private void createTables(Connection connection) throws SQLException {
         String[] queries = {
 
                 """
@@ -80,7 +164,33 @@ public class DatabaseService {
                     search_lat REAL NOT NULL,
                     search_lon REAL NOT NULL,
                     search_radius INTEGER NOT NULL,
-                    cached_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
+                    cached_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+                    expires_at INTEGER
+                )
+                """,
+
+                """
+                CREATE TABLE IF NOT EXISTS regional_pharmacies (
+                    id TEXT PRIMARY KEY,
+                    name TEXT NOT NULL,
+                    latitude REAL NOT NULL,
+                    longitude REAL NOT NULL,
+                    address TEXT,
+                    phone TEXT,
+                    opening_hours TEXT
+                )
+                """,
+
+                """
+                CREATE TABLE IF NOT EXISTS regional_dataset (
+                    region TEXT PRIMARY KEY,
+                    south REAL NOT NULL,
+                    west REAL NOT NULL,
+                    north REAL NOT NULL,
+                    east REAL NOT NULL,
+                    pharmacy_count INTEGER NOT NULL,
+                    imported_at INTEGER NOT NULL,
+                    osm_base TEXT
                 )
                 """,
 
@@ -101,173 +211,841 @@ public class DatabaseService {
                 stmt.execute(q);
             }
         }
+
+        // Columns added after the first release of a table
+        addColumnIfMissing(connection, "regional_dataset", "osm_base", "TEXT");
+
+        // Expiry as epoch seconds, so the check is an indexed integer compare
+        if (addColumnIfMissing(connection, "pharmacy_cache", "expires_at", "INTEGER")) {
+            try (PreparedStatement ps = connection.prepareStatement("""
+                    UPDATE pharmacy_cache
+                    SET expires_at = CAST(strftime('%s', cached_at) AS INTEGER) + ?
+                    """)) {
+                ps.setLong(1, TimeUnit.HOURS.toSeconds(config.getCacheExpiryHours()));
+                logger.info("Expiry set for {} cached pharmacies", ps.executeUpdate());
+            }
+        }
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_pharmacy_cache_expires_at ON pharmacy_cache(expires_at)");
+        }
+
+        createPharmacyCacheIndex(connection);
+    }
+
+    /**
+     * R*Tree over the position of every cached pharmacy, kept in sync with
+     * pharmacy_cache by triggers. Rows are matched on the table's rowid,
+     * which is why the cache is written with upserts: INSERT OR REPLACE
+     * would give a replaced row a new rowid without firing the delete
+     * trigger.
+     */
+    private void createPharmacyCacheIndex(Connection connection) throws SQLException {
+        boolean existed = tableExists(connection, "pharmacy_cache_rtree");
+
+        String[] queries = {
+                """
+                CREATE VIRTUAL TABLE IF NOT EXISTS pharmacy_cache_rtree
+                USING rtree(id, min_lat, max_lat, min_lon, max_lon)
+                """,
+
+                """
+                CREATE TRIGGER IF NOT EXISTS pharmacy_cache_rtree_insert
+                AFTER INSERT ON pharmacy_cache
+                BEGIN
+                    INSERT INTO pharmacy_cache_rtree
+                    VALUES (new.rowid, new.latitude, new.latitude, new.longitude, new.longitude);
+                END
+                """,
+
+                """
+                CREATE TRIGGER IF NOT EXISTS pharmacy_cache_rtree_update
+                AFTER UPDATE OF latitude, longitude ON pharmacy_cache
+                BEGIN
+                    UPDATE pharmacy_cache_rtree
+                    SET min_lat = new.latitude, max_lat = new.latitude,
+                        min_lon = new.longitude, max_lon = new.longitude
+                    WHERE id = new.rowid;
+                END
+                """,
+
+                """
+                CREATE TRIGGER IF NOT EXISTS pharmacy_cache_rtree_delete
+                AFTER DELETE ON pharmacy_cache
+                BEGIN
+                    DELETE FROM pharmacy_cache_rtree WHERE id = old.rowid;
+                END
+                """
+        };
+
+        try (Statement stmt = connection.createStatement()) {
+            for (String q : queries) {
+                stmt.execute(q);
+            }
+
+            if (!existed) {
+                int rows = stmt.executeUpdate("""
+                        INSERT INTO pharmacy_cache_rtree
+                        SELECT rowid, latitude, latitude, longitude, longitude
+                        FROM pharmacy_cache
+                        """);
+                logger.info("Spatial index created for {} cached pharmacies", rows);
+            }
+        }
+    }
+
+    private boolean tableExists(Connection connection, String name) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement(
+                "SELECT 1 FROM sqlite_master WHERE name = ?")) {
+            ps.setString(1, name);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    /**
+     * @return true if the column had to be added
+     */
+    private boolean addColumnIfMissing(Connection connection, String table, String column, String definition) throws SQLException {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (rs.next()) {
+                if (column.equalsIgnoreCase(rs.getString("name"))) {
+                    return false;
+                }
+            }
+        }
+
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition);
+            logger.info("Added column {}.{}", table, column);
+        }
+        return true;
     }
 
     /* =========================
        FAVORITES
        ========================= */
 
-    public void addFavorite(Pharmacy pharmacy) {
+    public CompletableFuture<Void> addFavoriteAsync(Pharmacy pharmacy) {
         String sql = """
                 INSERT OR REPLACE INTO favorites
                 (id, name, latitude, longitude, address, phone, opening_hours)
                 VALUES (?, ?, ?, ?, ?, ?, ?)
                 """;
 
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+        return write("Adding favorite", session -> {
+            PreparedStatement ps = session.prepared(sql);
             fillPharmacyStatement(ps, pharmacy);
             ps.executeUpdate();
             logger.info("Favorite added: {}", pharmacy.getName());
-        } catch (SQLException e) {
-            logger.error("Failed to add favorite", e);
-        }
+            return null;
+        });
     }
 
-    public void removeFavorite(String pharmacyId) {
+    public void addFavorite(Pharmacy pharmacy) {
+        await(addFavoriteAsync(pharmacy), null);
+    }
+
+    public CompletableFuture<Void> removeFavoriteAsync(String pharmacyId) {
         String sql = "DELETE FROM favorites WHERE id = ?";
 
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+        return write("Removing favorite", session -> {
+            PreparedStatement ps = session.prepared(sql);
             ps.setString(1, pharmacyId);
             ps.executeUpdate();
             logger.info("Favorite removed: {}", pharmacyId);
-        } catch (SQLException e) {
-            logger.error("Failed to remove favorite", e);
-        }
+            return null;
+        });
     }
 
-    public boolean isFavorite(String pharmacyId) {
+    public void removeFavorite(String pharmacyId) {
+        await(removeFavoriteAsync(pharmacyId), null);
+    }
+
+    public CompletableFuture<Boolean> isFavoriteAsync(String pharmacyId) {
         String sql = "SELECT 1 FROM favorites WHERE id = ?";
 
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+        return read("Favorite check", session -> {
+            PreparedStatement ps = session.prepared(sql);
             ps.setString(1, pharmacyId);
-            ResultSet rs = ps.executeQuery();
-            return rs.next();
-        } catch (SQLException e) {
-            logger.error("Favorite check failed", e);
-            return false;
-        }
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next();
+            }
+        });
     }
 
-    public List<Pharmacy> getFavorites() {
-        List<Pharmacy> favorites = new ArrayList<>();
-        String sql = "SELECT * FROM favorites ORDER BY date_added DESC";
+    public boolean isFavorite(String pharmacyId) {
+        return await(isFavoriteAsync(pharmacyId), false);
+    }
 
-        try (Statement stmt = connection.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
+    public CompletableFuture<List<Pharmacy>> getFavoritesAsync() {
+        String sql = "SELECT * FROM favorites ORDER BY date_added DESC";
 
-            while (rs.next()) {
-                favorites.add(mapPharmacy(rs));
+        return read("Loading favorites", session -> {
+            List<Pharmacy> favorites = new ArrayList<>();
+            try (ResultSet rs = session.prepared(sql).executeQuery()) {
+                while (rs.next()) {
+                    favorites.add(mapPharmacy(rs));
+                }
             }
+            return favorites;
+        });
+    }
 
-        } catch (SQLException e) {
-            logger.error("Failed to load favorites", e);
-        }
-
-        return favorites;
+    public List<Pharmacy> getFavorites() {
+        return await(getFavoritesAsync(), new ArrayList<>());
     }
 
     /* =========================
        CACHE
        ========================= */
 
-    public void cachePharmacies(
+    public CompletableFuture<Void> cachePharmaciesAsync(
             List<Pharmacy> pharmacies,
             double searchLat,
             double searchLon,
             int radius) {
 
         if (!config.isCacheEnabled() || pharmacies.isEmpty()) {
-            return;
+            return CompletableFuture.completedFuture(null);
         }
 
+        // Upsert keeps the rowid the spatial index refers to
         String sql = """
-                INSERT OR REPLACE INTO pharmacy_cache
+                INSERT INTO pharmacy_cache
                 (id, name, latitude, longitude, address, phone,
-                 opening_hours, search_lat, search_lon, search_radius)
-                VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
+                 opening_hours, search_lat, search_lon, search_radius, expires_at)
+                VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
+                ON CONFLICT(id) DO UPDATE SET
+                    name = excluded.name,
+                    latitude = excluded.latitude,
+                    longitude = excluded.longitude,
+                    address = excluded.address,
+                    phone = excluded.phone,
+                    opening_hours = excluded.opening_hours,
+                    search_lat = excluded.search_lat,
+                    search_lon = excluded.search_lon,
+                    search_radius = excluded.search_radius,
+                    cached_at = CURRENT_TIMESTAMP,
+                    expires_at = excluded.expires_at
                 """;
 
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+        // The caller may keep modifying its list after we return
+        List<Pharmacy> batch = new ArrayList<>(pharmacies);
 
-            for (Pharmacy p : pharmacies) {
-                ps.setString(1, p.getId());
-                ps.setString(2, p.getName());
-                ps.setDouble(3, p.getLatitude());
-                ps.setDouble(4, p.getLongitude());
-                ps.setString(5, p.getAddress());
-                ps.setString(6, p.getPhone());
-                ps.setString(7, p.getOpeningHours());
+        // One transaction and one batch for the whole result set
+        return write("Caching", session -> {
+            long start = System.nanoTime();
+            long expiresAt = epochSeconds() + TimeUnit.HOURS.toSeconds(config.getCacheExpiryHours());
+            PreparedStatement ps = session.prepared(sql);
+
+            for (Pharmacy p : batch) {
+                fillPharmacyStatement(ps, p);
                 ps.setDouble(8, searchLat);
                 ps.setDouble(9, searchLon);
                 ps.setInt(10, radius);
-                ps.executeUpdate();
+                ps.setLong(11, expiresAt);
+                ps.addBatch();
             }
+            ps.executeBatch();
 
-            logger.info("Cached {} pharmacies", pharmacies.size());
+            logger.info("Cached {} pharmacies in {} ms", batch.size(),
+                    (System.nanoTime() - start) / 1_000_000);
+            return null;
+        });
+    }
 
-        } catch (SQLException e) {
-            logger.error("Caching failed", e);
-        }
+    public void cachePharmacies(
+            List<Pharmacy> pharmacies,
+            double searchLat,
+            double searchLon,
+            int radius) {
+
+        await(cachePharmaciesAsync(pharmacies, searchLat, searchLon, radius), null);
     }
 
-    public List<Pharmacy> getCachedPharmacies(
+    /**
+     * Cached pharmacies lying within {@code radius} meters of a point,
+     * nearest first. The R*Tree narrows the search to the bounding box of
+     * the circle; exact distances decide the rest.
+     */
+    public CompletableFuture<List<Pharmacy>> getCachedPharmaciesAsync(
             double searchLat,
             double searchLon,
             int radius) {
 
         if (!config.isCacheEnabled()) {
-            return new ArrayList<>();
+            return CompletableFuture.completedFuture(new ArrayList<>());
         }
 
-        List<Pharmacy> pharmacies = new ArrayList<>();
+        double dLat = radius / METERS_PER_DEGREE;
+        double dLon = dLat / Math.max(0.01, Math.cos(Math.toRadians(searchLat)));
 
         String sql = """
-                SELECT * FROM pharmacy_cache
-                WHERE ABS(search_lat - ?) < 0.01
-                  AND ABS(search_lon - ?) < 0.01
-                  AND ABS(search_radius - ?) < 2000
-                  AND datetime(cached_at) >
-                      datetime('now', '-' || ? || ' hours')
+                SELECT c.* FROM pharmacy_cache_rtree r
+                JOIN pharmacy_cache c ON c.rowid = r.id
+                WHERE r.max_lat >= ? AND r.min_lat <= ?
+                  AND r.max_lon >= ? AND r.min_lon <= ?
+                  AND c.expires_at > ?
                 """;
 
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
-            ps.setDouble(1, searchLat);
-            ps.setDouble(2, searchLon);
-            ps.setInt(3, radius);
-            ps.setInt(4, config.getCacheExpiryHours());
+        return read("Cache retrieval", session -> {
+            List<Pharmacy> pharmacies = new ArrayList<>();
 
-            ResultSet rs = ps.executeQuery();
+            PreparedStatement ps = session.prepared(sql);
+            ps.setDouble(1, searchLat - dLat);
+            ps.setDouble(2, searchLat + dLat);
+            ps.setDouble(3, searchLon - dLon);
+            ps.setDouble(4, searchLon + dLon);
+            ps.setLong(5, epochSeconds());
 
-            while (rs.next()) {
-                Pharmacy pharmacy = mapPharmacy(rs);
-                pharmacy.calculateDistanceFrom(searchLat, searchLon);
-                pharmacies.add(pharmacy);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    pharmacies.add(mapPharmacy(rs));
+                }
             }
 
+            // Corners of the box and float rounding in the R*Tree
+            pharmacies = new DistanceKernel(searchLat, searchLon)
+                    .nearest(pharmacies, pharmacies.size(), radius / 1000.0);
+
             if (!pharmacies.isEmpty()) {
+                PharmacySpatialIndex.getInstance().insertAll(pharmacies);
                 logger.info("Cache hit: {} pharmacies", pharmacies.size());
             }
+            return pharmacies;
+        });
+    }
 
-        } catch (SQLException e) {
-            logger.error("Cache retrieval failed", e);
-        }
+    public List<Pharmacy> getCachedPharmacies(
+            double searchLat,
+            double searchLon,
+            int radius) {
+
+        return await(getCachedPharmaciesAsync(searchLat, searchLon, radius), new ArrayList<>());
+    }
+
+    /**
+     * Delete expired rows in chunks of {@code db.purge.chunk.size}, each
+     * chunk its own transaction, so other writes are queued behind one
+     * small delete rather than the whole purge.
+     *
+     * @return number of rows deleted
+     */
+    public CompletableFuture<Integer> clearExpiredCacheAsync() {
+        int chunkSize = Math.max(1, config.getIntProperty("db.purge.chunk.size", 500));
+        long now = epochSeconds();
+
+        return purgeExpiredChunks(now, chunkSize, 0).thenApply(deleted -> {
+            logger.info("Expired cache entries removed: {}", deleted);
+            return deleted;
+        });
+    }
 
-        return pharmacies;
+    public int clearExpiredCache() {
+        return await(clearExpiredCacheAsync(), 0);
     }
 
-    public void clearExpiredCache() {
+    private CompletableFuture<Integer> purgeExpiredChunks(long now, int chunkSize, int deletedSoFar) {
         String sql = """
                 DELETE FROM pharmacy_cache
-                WHERE datetime(cached_at) <
-                      datetime('now', '-' || ? || ' hours')
+                WHERE rowid IN (
+                    SELECT rowid FROM pharmacy_cache
+                    WHERE expires_at <= ?
+                    LIMIT ?
+                )
                 """;
 
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
-            ps.setInt(1, config.getCacheExpiryHours());
-            int deleted = ps.executeUpdate();
-            logger.info("Expired cache entries removed: {}", deleted);
+        return write("Cache cleanup", session -> {
+            PreparedStatement ps = session.prepared(sql);
+            ps.setLong(1, now);
+            ps.setInt(2, chunkSize);
+            return ps.executeUpdate();
+        }).thenCompose(deleted -> deleted < chunkSize
+                ? CompletableFuture.completedFuture(deletedSoFar + deleted)
+                : purgeExpiredChunks(now, chunkSize, deletedSoFar + deleted));
+    }
+
+    /* =========================
+       SEARCH HISTORY
+       ========================= */
+
+    public CompletableFuture<Void> addSearchHistoryAsync(String query) {
+        String sql = "INSERT INTO search_history (search_query) VALUES (?)";
+
+        return write("Saving search history", session -> {
+            PreparedStatement ps = session.prepared(sql);
+            ps.setString(1, query);
+            ps.executeUpdate();
+            return null;
+        });
+    }
+
+    /**
+     * The most recent searches, up to {@code search.history.max.rows}.
+     */
+    public CompletableFuture<List<SearchHistoryRow>> getSearchHistoryAsync() {
+        String sql = """
+                SELECT search_query, CAST(strftime('%s', searched_at) AS INTEGER) AS searched_at
+                FROM search_history
+                ORDER BY id DESC
+                LIMIT ?
+                """;
+
+        return read("Loading search history", session -> {
+            List<SearchHistoryRow> rows = new ArrayList<>();
+            PreparedStatement ps = session.prepared(sql);
+            ps.setInt(1, searchHistoryLimit());
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    rows.add(new SearchHistoryRow(rs.getString(1), rs.getLong(2)));
+                }
+            }
+            return rows;
+        });
+    }
+
+    private int searchHistoryLimit() {
+        return Math.max(1, config.getIntProperty("search.history.max.rows", 5000));
+    }
+
+    public static class SearchHistoryRow {
+        private final String query;
+        private final long searchedAt;
+
+        public SearchHistoryRow(String query, long searchedAt) {
+            this.query = query;
+            this.searchedAt = searchedAt;
+        }
+
+        public String getQuery() { return query; }
+        /** Epoch seconds */
+        public long getSearchedAt() { return searchedAt; }
+    }
+
+    /* =========================
+       MAINTENANCE
+       ========================= */
+
+    /**
+     * Schedule the periodic purge, vacuum and statistics update on a
+     * low-priority thread.
+     */
+    public void startMaintenance() {
+        long interval = Math.max(1, config.getIntProperty("db.maintenance.interval.minutes", 60));
+        maintenanceScheduler.scheduleWithFixedDelay(this::runMaintenance,
+                MAINTENANCE_INITIAL_DELAY_MINUTES, interval, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Purge expired rows, give the freed pages back to the file system and
+     * refresh the query planner statistics.
+     *
+     * Databases created before auto_vacuum was enabled are converted once
+     * with a full VACUUM; from then on incremental_vacuum only has to move
+     * the free pages.
+     */
+    private void runMaintenance() {
+        try {
+            long start = System.nanoTime();
+            int purged = clearExpiredCacheAsync().join();
+            trimSearchHistory();
+
+            long[] sizes = writeOutsideTransaction("Database maintenance", session -> {
+                long before = databaseBytes(session);
+
+                try (Statement stmt = session.connection.createStatement()) {
+                    if (pragmaLong(session, "auto_vacuum") != 2) {
+                        logger.info("Converting database to incremental auto-vacuum");
+                        stmt.execute("PRAGMA auto_vacuum = INCREMENTAL");
+                        stmt.execute("VACUUM");
+                    } else {
+                        stmt.execute("PRAGMA incremental_vacuum");
+                    }
+                    stmt.execute("ANALYZE");
+                }
+                return new long[]{before, databaseBytes(session)};
+            }).join();
+
+            logger.info("Database maintenance: {} expired rows purged, {} KiB reclaimed ({} KiB -> {} KiB) in {} ms",
+                    purged, (sizes[0] - sizes[1]) / 1024, sizes[0] / 1024, sizes[1] / 1024,
+                    (System.nanoTime() - start) / 1_000_000);
+
+        } catch (CompletionException | CancellationException e) {
+            // Already logged by the failing operation
+        } catch (Exception e) {
+            logger.error("Database maintenance failed", e);
+        }
+    }
+
+    /**
+     * Drop searches older than the ones {@link #getSearchHistoryAsync} reads.
+     */
+    private void trimSearchHistory() {
+        String sql = """
+                DELETE FROM search_history
+                WHERE id <= (SELECT id FROM search_history ORDER BY id DESC LIMIT 1 OFFSET ?)
+                """;
+
+        write("Trimming search history", session -> {
+            PreparedStatement ps = session.prepared(sql);
+            ps.setInt(1, searchHistoryLimit());
+            return ps.executeUpdate();
+        }).join();
+    }
+
+    private static long databaseBytes(Session session) throws SQLException {
+        return pragmaLong(session, "page_count") * pragmaLong(session, "page_size");
+    }
+
+    private static long pragmaLong(Session session, String pragma) throws SQLException {
+        try (Statement stmt = session.connection.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA " + pragma)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    private static long epochSeconds() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    /* =========================
+       REGIONAL DATASET
+       ========================= */
+
+    /**
+     * Replace the whole regional dataset in one transaction.
+     */
+    public CompletableFuture<Void> replaceRegionalDatasetAsync(RegionalDatasetInfo info,
+                                                               List<Pharmacy> pharmacies) {
+        String insert = """
+                INSERT OR REPLACE INTO regional_pharmacies
+                (id, name, latitude, longitude, address, phone, opening_hours)
+                VALUES (?, ?, ?, ?, ?, ?, ?)
+                """;
+
+        String saveInfo = """
+                INSERT OR REPLACE INTO regional_dataset
+                (region, south, west, north, east, pharmacy_count, imported_at, osm_base)
+                VALUES (?, ?, ?, ?, ?, ?, ?, ?)
+                """;
+
+        return write("Saving regional dataset", session -> {
+            try (Statement stmt = session.connection.createStatement()) {
+                stmt.executeUpdate("DELETE FROM regional_pharmacies");
+                stmt.executeUpdate("DELETE FROM regional_dataset");
+            }
+
+            PreparedStatement ps = session.prepared(insert);
+            for (Pharmacy p : pharmacies) {
+                fillPharmacyStatement(ps, p);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+
+            PreparedStatement infoPs = session.prepared(saveInfo);
+            fillDatasetInfoStatement(infoPs, info, pharmacies.size());
+            infoPs.executeUpdate();
+
+            logger.info("Regional dataset '{}' saved: {} pharmacies",
+                    info.getRegion(), pharmacies.size());
+            return null;
+        });
+    }
+
+    public void replaceRegionalDataset(RegionalDatasetInfo info, List<Pharmacy> pharmacies) {
+        await(replaceRegionalDatasetAsync(info, pharmacies), null);
+    }
+
+    /**
+     * Apply a delta refresh: upsert changed pharmacies, drop deleted ones and
+     * record the new snapshot, in one transaction.
+     */
+    public CompletableFuture<Void> applyRegionalDeltaAsync(RegionalDatasetInfo info, List<Pharmacy> changed,
+                                                           Collection<String> deletedIds, int totalCount) {
+        String upsert = """
+                INSERT OR REPLACE INTO regional_pharmacies
+                (id, name, latitude, longitude, address, phone, opening_hours)
+                VALUES (?, ?, ?, ?, ?, ?, ?)
+                """;
+
+        String saveInfo = """
+                INSERT OR REPLACE INTO regional_dataset
+                (region, south, west, north, east, pharmacy_count, imported_at, osm_base)
+                VALUES (?, ?, ?, ?, ?, ?, ?, ?)
+                """;
+
+        return write("Applying regional delta", session -> {
+            PreparedStatement ps = session.prepared(upsert);
+            for (Pharmacy p : changed) {
+                fillPharmacyStatement(ps, p);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+
+            PreparedStatement del = session.prepared("DELETE FROM regional_pharmacies WHERE id = ?");
+            for (String id : deletedIds) {
+                del.setString(1, id);
+                del.addBatch();
+            }
+            del.executeBatch();
+
+            PreparedStatement infoPs = session.prepared(saveInfo);
+            fillDatasetInfoStatement(infoPs, info, totalCount);
+            infoPs.executeUpdate();
+
+            logger.info("Regional dataset '{}' updated: {} changed, {} deleted",
+                    info.getRegion(), changed.size(), deletedIds.size());
+            return null;
+        });
+    }
+
+    public void applyRegionalDelta(RegionalDatasetInfo info, List<Pharmacy> changed,
+                                   Collection<String> deletedIds, int totalCount) {
+        await(applyRegionalDeltaAsync(info, changed, deletedIds, totalCount), null);
+    }
+
+    public CompletableFuture<List<Pharmacy>> getRegionalPharmaciesAsync() {
+        return read("Loading regional pharmacies", session -> {
+            List<Pharmacy> pharmacies = new ArrayList<>();
+            try (Statement stmt = session.connection.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT * FROM regional_pharmacies")) {
+
+                while (rs.next()) {
+                    pharmacies.add(mapPharmacy(rs));
+                }
+            }
+            return pharmacies;
+        });
+    }
+
+    public List<Pharmacy> getRegionalPharmacies() {
+        return await(getRegionalPharmaciesAsync(), new ArrayList<>());
+    }
+
+    /**
+     * @return the stored dataset description, or null if nothing was imported
+     */
+    public CompletableFuture<RegionalDatasetInfo> getRegionalDatasetInfoAsync() {
+        return read("Loading regional dataset info", session -> {
+            try (ResultSet rs = session.prepared("SELECT * FROM regional_dataset LIMIT 1").executeQuery()) {
+                if (rs.next()) {
+                    return new RegionalDatasetInfo(
+                            rs.getString("region"),
+                            rs.getDouble("south"),
+                            rs.getDouble("west"),
+                            rs.getDouble("north"),
+                            rs.getDouble("east"),
+                            rs.getLong("imported_at"),
+                            rs.getString("osm_base")
+                    );
+                }
+            }
+            return null;
+        });
+    }
+
+    public RegionalDatasetInfo getRegionalDatasetInfo() {
+        return await(getRegionalDatasetInfoAsync(), null);
+    }
+
+    private void fillDatasetInfoStatement(PreparedStatement ps, RegionalDatasetInfo info,
+                                          int pharmacyCount) throws SQLException {
+        ps.setString(1, info.getRegion());
+        ps.setDouble(2, info.getSouth());
+        ps.setDouble(3, info.getWest());
+        ps.setDouble(4, info.getNorth());
+        ps.setDouble(5, info.getEast());
+        ps.setInt(6, pharmacyCount);
+        ps.setLong(7, info.getImportedAt());
+        ps.setString(8, info.getOsmBase());
+    }
+
+    /**
+     * Bounding box, import time and OSM snapshot date of the offline
+     * regional dataset.
+     */
+    public static class RegionalDatasetInfo {
+        private final String region;
+        private final double south;
+        private final double west;
+        private final double north;
+        private final double east;
+        private final long importedAt;
+        private final String osmBase;
+
+        public RegionalDatasetInfo(String region, double south, double west,
+                                   double north, double east, long importedAt, String osmBase) {
+            this.region = region;
+            this.south = south;
+            this.west = west;
+            this.north = north;
+            this.east = east;
+            this.importedAt = importedAt;
+            this.osmBase = osmBase;
+        }
+
+        public String getRegion() { return region; }
+        public double getSouth() { return south; }
+        public double getWest() { return west; }
+        public double getNorth() { return north; }
+        public double getEast() { return east; }
+        public long getImportedAt() { return importedAt; }
+        /** Value of {@code timestamp_osm_base} the data is current as of, or null */
+        public String getOsmBase() { return osmBase; }
+    }
+
+    /* =========================
+       CONNECTIONS
+       ========================= */
+
+    @FunctionalInterface
+    private interface SqlWork<T> {
+        T run(Session session) throws SQLException;
+    }
+
+    /**
+     * Queue a write for the writer thread. It runs in its own transaction,
+     * after every write submitted before it.
+     */
+    private <T> CompletableFuture<T> write(String description, SqlWork<T> work) {
+        return submitWrite(description, work, true);
+    }
+
+    /**
+     * Queue work for the writer thread that must run in autocommit mode,
+     * such as VACUUM.
+     */
+    private <T> CompletableFuture<T> writeOutsideTransaction(String description, SqlWork<T> work) {
+        return submitWrite(description, work, false);
+    }
+
+    private <T> CompletableFuture<T> submitWrite(String description, SqlWork<T> work, boolean transaction) {
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                if (writer == null) {
+                    throw new CompletionException(new SQLException("Database not available"));
+                }
+                if (transaction) {
+                    return inTransaction(description, writer, work);
+                }
+                try {
+                    return work.run(writer);
+                } catch (SQLException e) {
+                    logger.error("{} failed", description, e);
+                    throw new CompletionException(e);
+                }
+            }, writeExecutor);
+        } catch (RejectedExecutionException e) {
+            logger.warn("{} skipped: database is closed", description);
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Run a query on a free read-only connection.
+     */
+    private <T> CompletableFuture<T> read(String description, SqlWork<T> work) {
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                Session session = readers.poll();
+                if (session == null) {
+                    // Only when initialization failed: there is one reader per thread
+                    throw new CompletionException(new SQLException("Database not available"));
+                }
+                try {
+                    return work.run(session);
+                } catch (SQLException e) {
+                    logger.error("{} failed", description, e);
+                    throw new CompletionException(e);
+                } finally {
+                    readers.add(session);
+                }
+            }, readExecutor);
+        } catch (RejectedExecutionException e) {
+            logger.warn("{} skipped: database is closed", description);
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private <T> T inTransaction(String description, Session session, SqlWork<T> work) {
+        Connection connection = session.connection;
+        try {
+            connection.setAutoCommit(false);
+            T result = work.run(session);
+            connection.commit();
+            return result;
+
         } catch (SQLException e) {
-            logger.error("Cache cleanup failed", e);
+            logger.error("{} failed", description, e);
+            try {
+                connection.rollback();
+            } catch (SQLException rollbackError) {
+                logger.error("Rollback failed", rollbackError);
+            }
+            throw new CompletionException(e);
+
+        } finally {
+            try {
+                connection.setAutoCommit(true);
+            } catch (SQLException e) {
+                logger.error("Failed to restore autocommit", e);
+            }
+        }
+    }
+
+    /**
+     * Wait for an operation; failures have already been logged and give
+     * {@code fallback}.
+     */
+    private static <T> T await(CompletableFuture<T> future, T fallback) {
+        try {
+            return future.join();
+        } catch (CompletionException | CancellationException e) {
+            return fallback;
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * One connection with its prepared statements, used by one thread at a
+     * time.
+     */
+    private static final class Session {
+        final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        Session(Connection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * Statement for the given SQL, prepared on first use and kept open.
+         */
+        PreparedStatement prepared(String sql) throws SQLException {
+            PreparedStatement ps = statements.get(sql);
+            if (ps == null) {
+                ps = connection.prepareStatement(sql);
+                statements.put(sql, ps);
+            }
+            return ps;
+        }
+
+        void close() throws SQLException {
+            for (PreparedStatement ps : statements.values()) {
+                ps.close();
+            }
+            statements.clear();
+            connection.close();
         }
     }
 
@@ -305,10 +1083,31 @@ public class DatabaseService {
        SHUTDOWN
        ========================= */
 
+    /**
+     * Finish the queued writes, then close every connection.
+     */
     public void close() {
+        maintenanceScheduler.shutdownNow();
+        writeExecutor.shutdown();
+        readExecutor.shutdown();
+        try {
+            if (!writeExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                logger.warn("Pending database writes did not finish in time");
+                writeExecutor.shutdownNow();
+            }
+            readExecutor.awaitTermination(2, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
         try {
-            if (connection != null && !connection.isClosed()) {
-                connection.close();
+            Session session;
+            while ((session = readers.poll()) != null) {
+                session.close();
+            }
+            if (writer != null) {
+                writer.close();
+                writer = null;
                 logger.info("Database connection closed");
             }
         } catch (SQLException e) {
@@ -0,0 +1,162 @@
+package com.pharmalocator.services;
+
+import com.pharmalocator.models.Pharmacy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Favorite pharmacies, answered from memory.
+ *
+ * The favorites are read from the database once at startup, in the
+ * background; listeners hear about each of them when the read completes.
+ * After that every lookup is a hash lookup, cheap enough for each list cell
+ * and map marker. Changes update memory first and notify listeners immediately;
+ * the database write is queued behind them on the database writer thread.
+ */
+public class FavoritesService {
+
+    private static final Logger logger = LoggerFactory.getLogger(FavoritesService.class);
+
+    private static FavoritesService instance;
+
+    /**
+     * Notified after a pharmacy was added to or removed from the favorites,
+     * on the thread that made the change, and for every stored favorite once
+     * the startup load completes, on a database thread.
+     */
+    public interface FavoritesListener {
+        void favoriteChanged(Pharmacy pharmacy, boolean favorite);
+    }
+
+    private final DatabaseService database;
+    private final Map<String, Pharmacy> favorites = new ConcurrentHashMap<>();
+    private final List<FavoritesListener> listeners = new CopyOnWriteArrayList<>();
+    // Changed by the user before the startup load completed: memory wins
+    private final Set<String> changedWhileLoading = ConcurrentHashMap.newKeySet();
+    private volatile boolean loaded;
+
+    private FavoritesService() {
+        this.database = DatabaseService.getInstance();
+    }
+
+    public static synchronized FavoritesService getInstance() {
+        if (instance == null) {
+            instance = new FavoritesService();
+        }
+        return instance;
+    }
+
+    /**
+     * Read the stored favorites in the background. Called once at startup.
+     */
+    public CompletableFuture<Void> loadAsync() {
+        return database.getFavoritesAsync().thenAccept(stored -> {
+            List<Pharmacy> added = new ArrayList<>();
+            synchronized (this) {
+                for (Pharmacy pharmacy : stored) {
+                    if (!changedWhileLoading.contains(pharmacy.getId())
+                            && favorites.putIfAbsent(pharmacy.getId(), pharmacy) == null) {
+                        added.add(pharmacy);
+                    }
+                }
+                loaded = true;
+                changedWhileLoading.clear();
+            }
+            logger.info("Loaded {} favorites", added.size());
+            added.forEach(pharmacy -> notifyListeners(pharmacy, true));
+        }).exceptionally(e -> {
+            logger.error("Failed to load favorites", e);
+            return null;
+        });
+    }
+
+    /* =========================
+       QUERIES
+       ========================= */
+
+    public boolean isFavorite(String pharmacyId) {
+        return pharmacyId != null && favorites.containsKey(pharmacyId);
+    }
+
+    public List<Pharmacy> getFavorites() {
+        return new ArrayList<>(favorites.values());
+    }
+
+    public int size() {
+        return favorites.size();
+    }
+
+    /* =========================
+       UPDATES
+       ========================= */
+
+    public void add(Pharmacy pharmacy) {
+        if (pharmacy == null || pharmacy.getId() == null) {
+            return;
+        }
+        markChanged(pharmacy);
+        if (favorites.putIfAbsent(pharmacy.getId(), pharmacy) == null) {
+            database.addFavoriteAsync(pharmacy);
+            notifyListeners(pharmacy, true);
+        }
+    }
+
+    public void remove(Pharmacy pharmacy) {
+        if (pharmacy == null || pharmacy.getId() == null) {
+            return;
+        }
+        markChanged(pharmacy);
+        if (favorites.remove(pharmacy.getId()) != null) {
+            database.removeFavoriteAsync(pharmacy.getId());
+            notifyListeners(pharmacy, false);
+        }
+    }
+
+    private synchronized void markChanged(Pharmacy pharmacy) {
+        if (!loaded) {
+            changedWhileLoading.add(pharmacy.getId());
+        }
+    }
+
+    /**
+     * @return true if the pharmacy is a favorite afterwards
+     */
+    public boolean toggle(Pharmacy pharmacy) {
+        if (isFavorite(pharmacy.getId())) {
+            remove(pharmacy);
+            return false;
+        }
+        add(pharmacy);
+        return true;
+    }
+
+    /* =========================
+       LISTENERS
+       ========================= */
+
+    public void addListener(FavoritesListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(FavoritesListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void notifyListeners(Pharmacy pharmacy, boolean favorite) {
+        for (FavoritesListener listener : listeners) {
+            try {
+                listener.favoriteChanged(pharmacy, favorite);
+            } catch (Exception e) {
+                logger.warn("Favorites listener failed", e);
+            }
+        }
+    }
+}
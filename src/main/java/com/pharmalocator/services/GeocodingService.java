@@ -12,7 +12,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.concurrent.TimeUnit;
 
 /**
  * Service responsible for reverse geocoding
@@ -26,10 +25,7 @@ public class GeocodingService {
     private final OkHttpClient httpClient;
 
     public GeocodingService() {
-        this.httpClient = new OkHttpClient.Builder()
-                .connectTimeout(10, TimeUnit.SECONDS)
-                .readTimeout(10, TimeUnit.SECONDS)
-                .build();
+        this.httpClient = HttpClientFactory.getInstance().newClient(10, 10);
     }
 
     /**
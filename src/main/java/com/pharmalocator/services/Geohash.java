@@ -0,0 +1,81 @@
+package com.pharmalocator.services;
+
+/**
+ * Minimal geohash encoding used for cache keys.
+ *
+ * Geohashes sharing a prefix lie in the same cell, so cache entries can be
+ * kept in a sorted map and all entries of a cell read with one range scan.
+ */
+final class Geohash {
+
+    private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+
+    private Geohash() {
+    }
+
+    static String encode(double lat, double lon, int precision) {
+        double minLat = -90, maxLat = 90;
+        double minLon = -180, maxLon = 180;
+        char[] hash = new char[precision];
+
+        boolean evenBit = true;
+        int bit = 0;
+        int ch = 0;
+        int length = 0;
+
+        while (length < precision) {
+            if (evenBit) {
+                double mid = (minLon + maxLon) / 2;
+                if (lon >= mid) {
+                    ch = (ch << 1) | 1;
+                    minLon = mid;
+                } else {
+                    ch <<= 1;
+                    maxLon = mid;
+                }
+            } else {
+                double mid = (minLat + maxLat) / 2;
+                if (lat >= mid) {
+                    ch = (ch << 1) | 1;
+                    minLat = mid;
+                } else {
+                    ch <<= 1;
+                    maxLat = mid;
+                }
+            }
+            evenBit = !evenBit;
+
+            if (++bit == 5) {
+                hash[length++] = BASE32[ch];
+                bit = 0;
+                ch = 0;
+            }
+        }
+        return new String(hash);
+    }
+
+    /**
+     * The cell containing the point and its eight neighbours.
+     */
+    static String[] withNeighbours(double lat, double lon, int precision) {
+        int bits = precision * 5;
+        double cellHeight = 180.0 / (1L << (bits / 2));
+        double cellWidth = 360.0 / (1L << ((bits + 1) / 2));
+
+        String[] cells = new String[9];
+        int i = 0;
+        for (int dy = -1; dy <= 1; dy++) {
+            for (int dx = -1; dx <= 1; dx++) {
+                double cellLat = Math.max(-90, Math.min(90, lat + dy * cellHeight));
+                double cellLon = lon + dx * cellWidth;
+                if (cellLon >= 180) {
+                    cellLon -= 360;
+                } else if (cellLon < -180) {
+                    cellLon += 360;
+                }
+                cells[i++] = encode(cellLat, cellLon, precision);
+            }
+        }
+        return cells;
+    }
+}
@@ -0,0 +1,349 @@
+package com.pharmalocator.services;
+
+import com.pharmalocator.config.AppConfig;
+import okhttp3.Cache;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.Dns;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Central owner of the application's HTTP stack.
+ *
+ * All services derive their client from one shared OkHttpClient with
+ * {@code newBuilder()}, so they share a single connection pool, dispatcher,
+ * DNS cache and TLS sessions while keeping their own timeouts.
+ *
+ * The shared client also carries a disk cache under {@code cache/http}.
+ * OkHttp revalidates stale entries with ETag / Last-Modified on its own;
+ * Nominatim and Overpass JSON answers sent without cache headers are given
+ * a forced TTL so repeated lookups are served from disk. Overpass gets a
+ * short one: it reports timeouts as an HTTP 200 whose body carries an
+ * error remark, which the caller finds and removes with
+ * {@link #evictCached}.
+ */
+public class HttpClientFactory {
+
+    private static final Logger logger = LoggerFactory.getLogger(HttpClientFactory.class);
+
+    private static final String HTTP_CACHE_DIR = "cache/http";
+
+    private static HttpClientFactory instance;
+
+    private final AppConfig config;
+    private final OkHttpClient sharedClient;
+    private final Cache httpCache;
+
+    private HttpClientFactory() {
+        this.config = AppConfig.getInstance();
+
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(config.getIntProperty("http.max.requests", 64));
+        dispatcher.setMaxRequestsPerHost(config.getIntProperty("http.max.requests.per.host", 6));
+
+        ConnectionPool connectionPool = new ConnectionPool(
+                config.getIntProperty("http.pool.max.idle", 8),
+                config.getIntProperty("http.pool.keepalive.minutes", 5),
+                TimeUnit.MINUTES);
+
+        this.httpCache = new Cache(new File(HTTP_CACHE_DIR),
+                config.getIntProperty("http.cache.size.mb", 50) * 1024L * 1024L);
+
+        // Forced TTL per host, in minutes
+        Map<String, Integer> forcedTtl = new HashMap<>();
+        int overpassTtl = config.getIntProperty("http.cache.forced.ttl.overpass.minutes", 30);
+        Set<String> overpassHosts = new HashSet<>();
+        config.getOverpassUrls().forEach(url -> addHost(overpassHosts, url));
+        overpassHosts.forEach(host -> forcedTtl.put(host, overpassTtl));
+        Set<String> nominatimHosts = new HashSet<>();
+        addHost(nominatimHosts, config.getNominatimUrl());
+        int nominatimTtl = config.getIntProperty("http.cache.forced.ttl.minutes", 360);
+        nominatimHosts.forEach(host -> forcedTtl.put(host, nominatimTtl));
+
+        HttpUrl nominatimUrl = HttpUrl.parse(config.getNominatimUrl());
+        String nominatimHost = nominatimUrl != null ? nominatimUrl.host() : "nominatim.openstreetmap.org";
+
+        this.sharedClient = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(connectionPool)
+                .cache(httpCache)
+                // Network interceptors only run on a cache miss or revalidation
+                .addNetworkInterceptor(new RateLimitInterceptor(nominatimHost,
+                        config.getIntProperty("http.nominatim.min.interval.ms", 1000)))
+                .addNetworkInterceptor(new ForcedTtlInterceptor(forcedTtl))
+                // HTTP/2 lets tile downloads multiplex over one connection per host
+                .protocols(List.of(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .dns(new CachingDns(config.getIntProperty("http.dns.cache.seconds", 300)))
+                .connectTimeout(10, TimeUnit.SECONDS)
+                .readTimeout(10, TimeUnit.SECONDS)
+                .build();
+    }
+
+    public static synchronized HttpClientFactory getInstance() {
+        if (instance == null) {
+            instance = new HttpClientFactory();
+        }
+        return instance;
+    }
+
+    /* =========================
+       CLIENTS
+       ========================= */
+
+    /**
+     * Client sharing the pool and dispatcher, with service-specific timeouts.
+     */
+    public OkHttpClient newClient(long connectTimeoutSeconds, long readTimeoutSeconds) {
+        return sharedClient.newBuilder()
+                .connectTimeout(connectTimeoutSeconds, TimeUnit.SECONDS)
+                .readTimeout(readTimeoutSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * Like {@link #newClient(long, long)} but bypassing the disk cache, for
+     * large one-off downloads that would only evict useful entries.
+     */
+    public OkHttpClient newUncachedClient(long connectTimeoutSeconds, long readTimeoutSeconds) {
+        return newClient(connectTimeoutSeconds, readTimeoutSeconds).newBuilder()
+                .cache(null)
+                .build();
+    }
+
+    public OkHttpClient getSharedClient() {
+        return sharedClient;
+    }
+
+    /**
+     * Drop the cached answer for {@code url}, e.g. once its body turned out
+     * to be an error. Call after the response has been closed.
+     */
+    public void evictCached(HttpUrl url) {
+        try {
+            Iterator<String> urls = httpCache.urls();
+            while (urls.hasNext()) {
+                if (urls.next().equals(url.toString())) {
+                    urls.remove();
+                    logger.debug("Evicted cached answer for {}", url.host());
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to evict cached answer: {}", e.getMessage());
+        }
+    }
+
+    /* =========================
+       WARM-UP
+       ========================= */
+
+    /**
+     * Opens connections to the Overpass, Nominatim and tile hosts in the
+     * background so the first real request skips DNS, TCP and TLS setup.
+     * Returns immediately.
+     */
+    public void preconnect() {
+        Set<String> origins = new LinkedHashSet<>();
+        config.getOverpassUrls().forEach(url -> addOrigin(origins, url));
+        addOrigin(origins, config.getNominatimUrl());
+        addOrigin(origins, config.getMapTileUrl().replace("{s}", "a"));
+        addOrigin(origins, OfflineTileCache.TILE_URL_TEMPLATE);
+
+        for (String origin : origins) {
+            Request request = new Request.Builder()
+                    .url(origin)
+                    .head()
+                    .header("User-Agent", config.getUserAgent())
+                    .build();
+
+            sharedClient.newCall(request).enqueue(new Callback() {
+                @Override
+                public void onResponse(Call call, Response response) {
+                    response.close();
+                    logger.debug("Pre-connected to {}", origin);
+                }
+
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    logger.debug("Pre-connect to {} failed: {}", origin, e.getMessage());
+                }
+            });
+        }
+
+        logger.info("Pre-connecting to {} hosts", origins.size());
+    }
+
+    private void addOrigin(Set<String> origins, String url) {
+        // Placeholders like {z} are not valid in a URL, strip them before parsing
+        HttpUrl parsed = HttpUrl.parse(url.replaceAll("\\{[^}]*}", "0"));
+        if (parsed != null) {
+            origins.add(parsed.scheme() + "://" + parsed.host() + "/");
+        }
+    }
+
+    private static void addHost(Set<String> hosts, String url) {
+        HttpUrl parsed = url != null ? HttpUrl.parse(url) : null;
+        if (parsed != null) {
+            hosts.add(parsed.host());
+        }
+    }
+
+    /* =========================
+       SHUTDOWN
+       ========================= */
+
+    public void shutdown() {
+        sharedClient.dispatcher().cancelAll();
+        sharedClient.dispatcher().executorService().shutdown();
+        sharedClient.connectionPool().evictAll();
+        try {
+            httpCache.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close HTTP cache: {}", e.getMessage());
+        }
+        logger.info("HTTP client shut down");
+    }
+
+    /* =========================
+       INTERCEPTORS
+       ========================= */
+
+    /**
+     * Makes successful JSON answers to GETs on the given hosts cacheable for
+     * a fixed time when the server sent no caching headers of its own.
+     * Error and rate-limit pages, which come as HTML or plain text even with
+     * status 200, are left uncacheable.
+     */
+    private static class ForcedTtlInterceptor implements Interceptor {
+        private final Map<String, Integer> ttlSecondsByHost = new HashMap<>();
+
+        ForcedTtlInterceptor(Map<String, Integer> ttlMinutesByHost) {
+            ttlMinutesByHost.forEach((host, minutes) ->
+                    ttlSecondsByHost.put(host, (int) TimeUnit.MINUTES.toSeconds(minutes)));
+        }
+
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Request request = chain.request();
+            Response response = chain.proceed(request);
+
+            int ttlSeconds = ttlSecondsByHost.getOrDefault(request.url().host(), 0);
+            String contentType = response.header("Content-Type", "");
+            if (ttlSeconds <= 0
+                    || !"GET".equals(request.method())
+                    || !response.isSuccessful()
+                    || !contentType.contains("json")
+                    || response.header("Cache-Control") != null
+                    || response.header("Expires") != null) {
+                return response;
+            }
+
+            return response.newBuilder()
+                    .removeHeader("Pragma")
+                    .header("Cache-Control", "public, max-age=" + ttlSeconds)
+                    .build();
+        }
+    }
+
+    /**
+     * Spaces out requests to one host, replacing the fixed sleep before every
+     * call. Being a network interceptor, answers served from the disk cache
+     * are not delayed.
+     */
+    private static class RateLimitInterceptor implements Interceptor {
+        private final String host;
+        private final long intervalNanos;
+        private long nextAllowed;
+
+        RateLimitInterceptor(String host, int minIntervalMillis) {
+            this.host = host;
+            this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(minIntervalMillis);
+        }
+
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            if (host.equals(chain.request().url().host())) {
+                awaitTurn();
+            }
+            return chain.proceed(chain.request());
+        }
+
+        private void awaitTurn() throws InterruptedIOException {
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                long slot = Math.max(now, nextAllowed);
+                nextAllowed = slot + intervalNanos;
+                wait = slot - now;
+            }
+
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while rate limiting " + host);
+                }
+            }
+        }
+    }
+
+    /**
+     * Small DNS cache shared by every client, so each service does not
+     * resolve the same hosts again.
+     */
+    private static class CachingDns implements Dns {
+        private final long ttlMillis;
+        private final Map<String, CachedLookup> cache = new ConcurrentHashMap<>();
+
+        CachingDns(int ttlSeconds) {
+            this.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+        }
+
+        @Override
+        public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+            long now = System.currentTimeMillis();
+            CachedLookup cached = cache.get(hostname);
+            if (cached != null && now - cached.resolvedAt < ttlMillis) {
+                return cached.addresses;
+            }
+
+            List<InetAddress> addresses = Dns.SYSTEM.lookup(hostname);
+            cache.put(hostname, new CachedLookup(addresses, now));
+            return addresses;
+        }
+
+        private static class CachedLookup {
+            final List<InetAddress> addresses;
+            final long resolvedAt;
+
+            CachedLookup(List<InetAddress> addresses, long resolvedAt) {
+                this.addresses = addresses;
+                this.resolvedAt = resolvedAt;
+            }
+        }
+    }
+}
@@ -8,8 +8,6 @@ import okhttp3.Response;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.TimeUnit;
-
 /**
  * Service that detects user's location based on IP address.
  * Works without GPS and provides instant results.
@@ -22,10 +20,7 @@ public class IpGeolocationService {
     private final OkHttpClient httpClient;
 
     public IpGeolocationService() {
-        this.httpClient = new OkHttpClient.Builder()
-                .connectTimeout(5, TimeUnit.SECONDS)
-                .readTimeout(5, TimeUnit.SECONDS)
-                .build();
+        this.httpClient = HttpClientFactory.getInstance().newClient(5, 5);
     }
 
     /**
@@ -118,6 +118,34 @@ public class MapService {
         LOGGER.info("Added {} pharmacy markers", pharmacies.size());
     }
 
+    /**
+     * Adds pharmacy markers to the map without clearing the existing ones.
+     * Used to fill the map progressively while results are still arriving.
+     */
+    public void appendPharmacyMarkers(List<Pharmacy> pharmacies) {
+        if (!isMapReady() || pharmacies == null || pharmacies.isEmpty()) {
+            return;
+        }
+
+        List<Map<String, Object>> markerData = pharmacies.stream()
+                .map(this::pharmacyToMap)
+                .collect(Collectors.toList());
+
+        executeScript("appendPharmacyMarkers(" + gson.toJson(markerData) + ");");
+
+        LOGGER.debug("Appended {} pharmacy markers", pharmacies.size());
+    }
+
+    /**
+     * Shows a pharmacy's marker as favorite or not, if it is on the map.
+     */
+    public void setPharmacyFavorite(String pharmacyId, boolean favorite) {
+        if (!isMapReady() || pharmacyId == null) {
+            return;
+        }
+        executeScript("setPharmacyFavorite(" + gson.toJson(pharmacyId) + ", " + favorite + ");");
+    }
+
     /**
      * Clears pharmacy markers.
      */
@@ -281,6 +309,7 @@ public class MapService {
         map.put("phone", safe(pharmacy.getPhone()));
         map.put("openingHours", safe(pharmacy.getOpeningHours()));
         map.put("distance", pharmacy.getFormattedDistance());
+        map.put("favorite", FavoritesService.getInstance().isFavorite(pharmacy.getId()));
 
         return map;
     }
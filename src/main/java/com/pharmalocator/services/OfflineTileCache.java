@@ -25,7 +25,7 @@ public class OfflineTileCache {
     private static final Logger logger = LoggerFactory.getLogger(OfflineTileCache.class);
 
     private static final String CACHE_DIR = "cache/tiles";
-    private static final String TILE_URL_TEMPLATE = "https://tile.openstreetmap.org/{z}/{x}/{y}.png";
+    static final String TILE_URL_TEMPLATE = "https://tile.openstreetmap.org/{z}/{x}/{y}.png";
 
     // Cache radius (download tiles within this radius of user location)
     // OPTIMIZED: Reduced zoom range to cache fewer tiles
@@ -41,10 +41,7 @@ public class OfflineTileCache {
 
     public OfflineTileCache() {
         this.cacheDirectory = Paths.get(CACHE_DIR);
-        this.httpClient = new OkHttpClient.Builder()
-                .connectTimeout(5, TimeUnit.SECONDS) // Reduced from 10s
-                .readTimeout(5, TimeUnit.SECONDS)    // Reduced from 10s
-                .build();
+        this.httpClient = HttpClientFactory.getInstance().newUncachedClient(5, 5); // Tiles have their own disk cache
         this.downloadExecutor = Executors.newFixedThreadPool(2); // Reduced from 4 to 2 threads for less resource usage
 
         initializeCacheDirectory();
@@ -0,0 +1,319 @@
+package com.pharmalocator.services;
+
+import okhttp3.CacheControl;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * Pool of Overpass API mirrors with latency-aware routing and hedged requests.
+ *
+ * Each mirror keeps a moving average of its time-to-first-byte, a moving error
+ * rate and a window of recent latencies. A query goes to the best-scoring
+ * mirror; if it has not answered by that mirror's p95 latency, a duplicate is
+ * sent to the next mirror and whichever answers first wins. The loser is
+ * cancelled.
+ */
+public class OverpassEndpointPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(OverpassEndpointPool.class);
+
+    private static final double EWMA_ALPHA = 0.2;
+    private static final int LATENCY_WINDOW = 32;
+    private static final int MIN_SAMPLES_FOR_P95 = 5;
+
+    // Hedge delay bounds and the value used until a mirror has enough samples
+    private static final long MIN_HEDGE_DELAY_MS = 300;
+    private static final long MAX_HEDGE_DELAY_MS = 5000;
+    private static final long DEFAULT_HEDGE_DELAY_MS = 2000;
+
+    private final List<Endpoint> endpoints = new ArrayList<>();
+
+    public OverpassEndpointPool(List<String> urls) {
+        for (String url : urls) {
+            endpoints.add(new Endpoint(url));
+        }
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("At least one Overpass URL is required");
+        }
+        logger.info("Overpass endpoint pool: {}", urls);
+    }
+
+    /**
+     * Execute a request against the best mirror, hedging to the second best
+     * when the first is slow or fails. The returned response is successful and
+     * must be closed by the caller.
+     *
+     * @param requestFor builds the request for a given mirror URL
+     */
+    public Response execute(OkHttpClient client, Function<String, Request> requestFor) throws IOException {
+        List<Endpoint> ranked = ranked();
+        HedgedCall hedged = new HedgedCall(client, requestFor, ranked);
+
+        Endpoint primary = ranked.get(0);
+        hedged.start(primary);
+
+        try {
+            if (ranked.size() > 1) {
+                long delay = primary.hedgeDelayMillis();
+                try {
+                    return hedged.winner.get(delay, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    if (hedged.hedge()) {
+                        logger.info("{} slower than {} ms, hedging request", primary.url, delay);
+                    }
+                }
+            }
+            return hedged.winner.get();
+
+        } catch (InterruptedException e) {
+            hedged.cancelAll();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Overpass request interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } finally {
+            hedged.cancelLosers();
+        }
+    }
+
+    /**
+     * Send an Overpass QL query through the pool as the {@code data} parameter.
+     * The returned response is successful and must be closed by the caller.
+     */
+    public Response query(OkHttpClient client, String query, String userAgent) throws IOException {
+        return query(client, query, userAgent, false);
+    }
+
+    /**
+     * As {@link #query(OkHttpClient, String, String)}; with {@code bypassCache}
+     * the request carries {@code Cache-Control: no-cache}, so the HTTP disk
+     * cache does not answer it.
+     */
+    public Response query(OkHttpClient client, String query, String userAgent, boolean bypassCache)
+            throws IOException {
+        String encodedQuery = URLEncoder.encode(query, StandardCharsets.UTF_8);
+        return execute(client, endpoint -> {
+            Request.Builder request = new Request.Builder()
+                    .url(endpoint + "?data=" + encodedQuery)
+                    .header("User-Agent", userAgent);
+            if (bypassCache) {
+                request.cacheControl(CacheControl.FORCE_NETWORK);
+            }
+            return request.build();
+        });
+    }
+
+    /**
+     * Mirrors ordered from best to worst score.
+     */
+    List<Endpoint> ranked() {
+        List<Endpoint> ranked = new ArrayList<>(endpoints);
+        ranked.sort(Comparator.comparingDouble(Endpoint::score));
+        return ranked;
+    }
+
+    /* =========================
+       HEDGED CALL
+       ========================= */
+
+    /**
+     * One logical request that may be in flight on several mirrors.
+     */
+    private static class HedgedCall {
+        final CompletableFuture<Response> winner = new CompletableFuture<>();
+
+        private final OkHttpClient client;
+        private final Function<String, Request> requestFor;
+        private final List<Endpoint> ranked;
+        private final List<Call> calls = new ArrayList<>();
+        private final List<Endpoint> callEndpoints = new ArrayList<>();
+        private final List<Long> callStarts = new ArrayList<>();
+        private int started;
+        private int failed;
+        private IOException lastError;
+        private Call winningCall;
+
+        HedgedCall(OkHttpClient client, Function<String, Request> requestFor, List<Endpoint> ranked) {
+            this.client = client;
+            this.requestFor = requestFor;
+            this.ranked = ranked;
+        }
+
+        synchronized void startNext() {
+            if (started < ranked.size() && !winner.isDone()) {
+                start(ranked.get(started));
+            }
+        }
+
+        /**
+         * Start the second mirror because the primary is slow, unless a
+         * failure already started it.
+         *
+         * @return whether a mirror was started
+         */
+        synchronized boolean hedge() {
+            if (started > 1) {
+                return false;
+            }
+            int before = started;
+            startNext();
+            return started > before;
+        }
+
+        synchronized void start(Endpoint endpoint) {
+            started++;
+            long startedAt = System.nanoTime();
+
+            Call call = client.newCall(requestFor.apply(endpoint.url));
+            calls.add(call);
+            callEndpoints.add(endpoint);
+            callStarts.add(startedAt);
+
+            call.enqueue(new Callback() {
+                @Override
+                public void onResponse(Call c, Response response) {
+                    long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+
+                    if (!response.isSuccessful() || response.body() == null) {
+                        response.close();
+                        endpoint.recordFailure();
+                        onFailed(endpoint, new IOException("Overpass API error: " + response.code()));
+                        return;
+                    }
+
+                    endpoint.recordSuccess(latency);
+                    if (complete(c, response)) {
+                        logger.debug("{} answered in {} ms", endpoint.url, latency);
+                    } else {
+                        response.close(); // Another mirror already answered
+                    }
+                }
+
+                @Override
+                public void onFailure(Call c, IOException e) {
+                    if (c.isCanceled()) {
+                        return; // We cancelled the loser, not the mirror's fault
+                    }
+                    endpoint.recordFailure();
+                    onFailed(endpoint, e);
+                }
+            });
+        }
+
+        private synchronized boolean complete(Call call, Response response) {
+            if (winner.isDone()) {
+                return false;
+            }
+            winningCall = call;
+            return winner.complete(response);
+        }
+
+        /**
+         * A failed mirror triggers the next one right away instead of waiting
+         * for the hedge delay; when none is left the request fails.
+         */
+        private synchronized void onFailed(Endpoint endpoint, IOException error) {
+            logger.warn("Overpass mirror {} failed: {}", endpoint.url, error.getMessage());
+            failed++;
+            lastError = error;
+
+            if (started < ranked.size()) {
+                startNext();
+            } else if (failed >= started) {
+                winner.completeExceptionally(lastError);
+            }
+        }
+
+        /**
+         * A mirror that lost the race is charged the time it had already taken,
+         * so a stalled mirror drops in the ranking even though it never answered.
+         */
+        synchronized void cancelLosers() {
+            long now = System.nanoTime();
+            for (int i = 0; i < calls.size(); i++) {
+                Call call = calls.get(i);
+                if (call == winningCall || call.isCanceled()) {
+                    continue;
+                }
+                call.cancel();
+                if (winningCall != null) {
+                    callEndpoints.get(i).recordLatency(
+                            TimeUnit.NANOSECONDS.toMillis(now - callStarts.get(i)));
+                }
+            }
+        }
+
+        synchronized void cancelAll() {
+            calls.forEach(Call::cancel);
+        }
+    }
+
+    /* =========================
+       ENDPOINT STATS
+       ========================= */
+
+    static class Endpoint {
+        final String url;
+
+        private double ewmaLatencyMs = DEFAULT_HEDGE_DELAY_MS / 2.0;
+        private double errorRate;
+        private final long[] window = new long[LATENCY_WINDOW];
+        private int samples;
+        private int next;
+
+        Endpoint(String url) {
+            this.url = url;
+        }
+
+        synchronized double score() {
+            // Errors weigh heavily: a mirror failing half the time counts as 3x slower
+            return ewmaLatencyMs * (1 + 4 * errorRate);
+        }
+
+        synchronized void recordSuccess(long latencyMs) {
+            errorRate += EWMA_ALPHA * (0 - errorRate);
+            recordLatency(latencyMs);
+        }
+
+        synchronized void recordLatency(long latencyMs) {
+            ewmaLatencyMs += EWMA_ALPHA * (latencyMs - ewmaLatencyMs);
+            window[next] = latencyMs;
+            next = (next + 1) % LATENCY_WINDOW;
+            samples = Math.min(samples + 1, LATENCY_WINDOW);
+        }
+
+        synchronized void recordFailure() {
+            errorRate += EWMA_ALPHA * (1 - errorRate);
+        }
+
+        synchronized long hedgeDelayMillis() {
+            if (samples < MIN_SAMPLES_FOR_P95) {
+                return DEFAULT_HEDGE_DELAY_MS;
+            }
+            long[] sorted = Arrays.copyOf(window, samples);
+            Arrays.sort(sorted);
+            long p95 = sorted[(int) Math.ceil(samples * 0.95) - 1];
+            return Math.max(MIN_HEDGE_DELAY_MS, Math.min(MAX_HEDGE_DELAY_MS, p95));
+        }
+    }
+}
@@ -0,0 +1,418 @@
+package com.pharmalocator.services;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.pharmalocator.models.Pharmacy;
+import com.pharmalocator.models.PharmacyTags;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Streaming parser for Overpass API JSON responses.
+ *
+ * Reads the "elements" array token by token and hands every pharmacy to a
+ * handler as soon as it has been read, so the response is never held in
+ * memory as a String or as a Gson tree.
+ */
+public class OverpassResponseParser {
+
+    private static final Logger logger = LoggerFactory.getLogger(OverpassResponseParser.class);
+
+    private static final String DEFAULT_NAME = "Pharmacie";
+
+    /**
+     * Receives pharmacies while the response is being read.
+     */
+    @FunctionalInterface
+    public interface PharmacyHandler {
+        /**
+         * @return false to stop reading the rest of the response
+         */
+        boolean onPharmacy(Pharmacy pharmacy);
+    }
+
+    // Scratch buffers reused across elements of one response
+    private final List<String> tagBuffer = new ArrayList<>();
+    private double[] geometryBuffer = new double[64];
+    private int geometrySize;
+    private double pointLat;
+    private double pointLon;
+    private Pharmacy lastPharmacy;
+
+    // Response metadata of the last parse
+    private String timestampOsmBase;
+    private long elementCount = -1;
+    private String remark;
+
+    /**
+     * Parse an Overpass response from a character stream.
+     *
+     * Pharmacies are handed out until the end of the array, until the
+     * handler returns false, or up to the first element without tags (the
+     * skeleton nodes Overpass appends after the tagged results). Except
+     * when the handler stops it, the rest of the response is still read
+     * for its remark; check {@link #hasErrorRemark()} afterwards.
+     *
+     * @return number of pharmacies handed to the handler
+     */
+    public int parse(Reader source, PharmacyHandler handler) throws IOException {
+        int count = 0;
+        timestampOsmBase = null;
+        elementCount = -1;
+        remark = null;
+
+        JsonReader reader = new JsonReader(source);
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+
+            if ("elements".equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    ElementResult result = readElement(reader);
+                    if (result == ElementResult.UNTAGGED) {
+                        logger.debug("Reached untagged elements after {} pharmacies, skipping the rest", count);
+                        // The remark, if any, comes after the elements
+                        while (reader.hasNext()) {
+                            reader.skipValue();
+                        }
+                        break;
+                    }
+                    if (result == ElementResult.PHARMACY) {
+                        count++;
+                        if (!handler.onPharmacy(lastPharmacy)) {
+                            return count;
+                        }
+                    }
+                }
+                reader.endArray();
+            } else if ("osm3s".equals(name)) {
+                readOsm3s(reader);
+            } else if ("remark".equals(name)) {
+                readRemark(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Read the element ids of an {@code out ids} response.
+     *
+     * @return number of ids added to {@code ids}
+     */
+    public int parseIds(Reader source, Set<String> ids) throws IOException {
+        int count = 0;
+        timestampOsmBase = null;
+        remark = null;
+
+        JsonReader reader = new JsonReader(source);
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+
+            if ("elements".equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if ("id".equals(reader.nextName())) {
+                            ids.add(reader.nextString());
+                            count++;
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                reader.endArray();
+            } else if ("osm3s".equals(name)) {
+                readOsm3s(reader);
+            } else if ("remark".equals(name)) {
+                readRemark(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Remark of the last response, or null if it had none.
+     */
+    public String getRemark() {
+        return remark;
+    }
+
+    /**
+     * Whether the last response ended with an Overpass runtime error, such
+     * as a timeout or running out of memory. Overpass still answers HTTP 200
+     * then, with whatever elements it had produced so far: the result is
+     * incomplete and must not be taken as the full content of the area.
+     */
+    public boolean hasErrorRemark() {
+        return isErrorRemark(remark);
+    }
+
+    static boolean isErrorRemark(String remark) {
+        if (remark == null) {
+            return false;
+        }
+        String text = remark.toLowerCase(Locale.ROOT);
+        return text.contains("error") || text.contains("timed out") || text.contains("out of memory");
+    }
+
+    /**
+     * Date of the OSM data the last response was built from, as sent in
+     * {@code osm3s.timestamp_osm_base}. This is the value to pass to a later
+     * {@code newer:} filter. Null if the response did not carry it.
+     */
+    public String getTimestampOsmBase() {
+        return timestampOsmBase;
+    }
+
+    /**
+     * Total of the {@code out count} element of the last response, or -1 if
+     * there was none.
+     */
+    public long getElementCount() {
+        return elementCount;
+    }
+
+    /* =========================
+       ELEMENT PARSING
+       ========================= */
+
+    private enum ElementResult { PHARMACY, SKIPPED, UNTAGGED }
+
+    private ElementResult readElement(JsonReader reader) throws IOException {
+        String type = null;
+        String id = null;
+        double lat = Double.NaN;
+        double lon = Double.NaN;
+        boolean hasTags = false;
+
+        tagBuffer.clear();
+        geometrySize = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "type" -> type = reader.nextString();
+                case "id" -> id = reader.nextString();
+                case "lat" -> lat = reader.nextDouble();
+                case "lon" -> lon = reader.nextDouble();
+                case "tags" -> {
+                    hasTags = true;
+                    readTags(reader);
+                }
+                case "geometry" -> readGeometry(reader);
+                case "center" -> {
+                    readPoint(reader);
+                    lat = pointLat;
+                    lon = pointLon;
+                }
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (!hasTags) {
+            return ElementResult.UNTAGGED;
+        }
+
+        if ("count".equals(type)) {
+            elementCount = Long.parseLong(tagValue("total", "-1"));
+            return ElementResult.SKIPPED;
+        }
+
+        try {
+            if ("node".equals(type)) {
+                lastPharmacy = buildNode(id, lat, lon);
+            } else if ("way".equals(type)) {
+                lastPharmacy = buildWay(id, lat, lon);
+            } else {
+                lastPharmacy = null;
+            }
+        } catch (IllegalArgumentException e) {
+            logger.warn("Invalid {} object: {}", type, e.getMessage());
+            lastPharmacy = null;
+        }
+
+        return lastPharmacy != null ? ElementResult.PHARMACY : ElementResult.SKIPPED;
+    }
+
+    private Pharmacy buildNode(String id, double lat, double lon) {
+        if (id == null || Double.isNaN(lat) || Double.isNaN(lon)) {
+            throw new IllegalArgumentException("missing id or coordinates");
+        }
+
+        Pharmacy pharmacy = new Pharmacy(id, tagValue("name", DEFAULT_NAME), lat, lon);
+        applyTags(pharmacy);
+        return pharmacy;
+    }
+
+    /**
+     * Ways carry their building outline; the marker goes at the average of its
+     * points. A way returned with "out center" only has a center point.
+     */
+    private Pharmacy buildWay(String id, double lat, double lon) {
+        if (id == null) {
+            throw new IllegalArgumentException("missing id");
+        }
+
+        int points = geometrySize / 2;
+        if (points == 0) {
+            if (Double.isNaN(lat) || Double.isNaN(lon)) {
+                return null;
+            }
+            Pharmacy pharmacy = new Pharmacy(id, tagValue("name", DEFAULT_NAME), lat, lon);
+            applyTags(pharmacy);
+            return pharmacy;
+        }
+
+        double centerLat = 0;
+        double centerLon = 0;
+        for (int i = 0; i < geometrySize; i += 2) {
+            centerLat += geometryBuffer[i];
+            centerLon += geometryBuffer[i + 1];
+        }
+        centerLat /= points;
+        centerLon /= points;
+
+        Pharmacy pharmacy = new Pharmacy(id, tagValue("name", DEFAULT_NAME), centerLat, centerLon);
+
+        // Store the building geometry
+        for (int i = 0; i < geometrySize; i += 2) {
+            pharmacy.addGeometryPoint(geometryBuffer[i], geometryBuffer[i + 1]);
+        }
+
+        applyTags(pharmacy);
+        return pharmacy;
+    }
+
+    private void applyTags(Pharmacy pharmacy) {
+        String address = buildAddress();
+        if (address != null) {
+            pharmacy.setAddress(address);
+        }
+
+        String phone = tagValue("phone", null);
+        if (phone != null) {
+            pharmacy.setPhone(phone);
+        }
+
+        String openingHours = tagValue("opening_hours", null);
+        if (openingHours != null) {
+            pharmacy.setOpeningHours(openingHours);
+        }
+
+        pharmacy.setTags(PharmacyTags.fromPairs(tagBuffer));
+    }
+
+    private String buildAddress() {
+        String number = tagValue("addr:housenumber", "");
+        String street = tagValue("addr:street", "");
+        String city = tagValue("addr:city", "");
+
+        String address = (number + " " + street).trim();
+        if (!city.isEmpty()) {
+            address += ", " + city;
+        }
+
+        return address.isEmpty() ? null : address;
+    }
+
+    private String tagValue(String key, String defaultValue) {
+        for (int i = 0; i < tagBuffer.size(); i += 2) {
+            if (key.equals(tagBuffer.get(i))) {
+                return tagBuffer.get(i + 1);
+            }
+        }
+        return defaultValue;
+    }
+
+    /* =========================
+       TOKEN HELPERS
+       ========================= */
+
+    private void readRemark(JsonReader reader) throws IOException {
+        remark = reader.nextString();
+        logger.warn("Overpass remark: {}", remark);
+    }
+
+    private void readOsm3s(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("timestamp_osm_base".equals(reader.nextName())) {
+                timestampOsmBase = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readTags(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            tagBuffer.add(key);
+            tagBuffer.add(reader.nextString());
+        }
+        reader.endObject();
+    }
+
+    private void readGeometry(JsonReader reader) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() == JsonToken.NULL) {
+                // Overpass emits null for members outside the bounding box
+                reader.nextNull();
+                continue;
+            }
+            readPoint(reader);
+            if (geometrySize + 2 > geometryBuffer.length) {
+                geometryBuffer = Arrays.copyOf(geometryBuffer, geometryBuffer.length * 2);
+            }
+            geometryBuffer[geometrySize++] = pointLat;
+            geometryBuffer[geometrySize++] = pointLon;
+        }
+        reader.endArray();
+    }
+
+    private void readPoint(JsonReader reader) throws IOException {
+        double lat = Double.NaN;
+        double lon = Double.NaN;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "lat" -> lat = reader.nextDouble();
+                case "lon" -> lon = reader.nextDouble();
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        pointLat = lat;
+        pointLon = lon;
+    }
+}
@@ -0,0 +1,726 @@
+package com.pharmalocator.services;
+
+import com.pharmalocator.models.Pharmacy;
+import com.pharmalocator.models.PharmacyTags;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Append-only journal file of the pharmacy cache.
+ *
+ * <pre>
+ * file    := "GPFC" version:u16 flags:u16 record*
+ * record  := type:u8 flags:u8 length:u32 rawLength:u32 crc32:u32 payload[length]
+ * DICT    := count:varint string*             more tag keys, numbered on
+ * ENTRY   := key:string savedAt:i64 lat:f64 lon:f64 radius:i32
+ *            count:varint pharmacy*
+ * REMOVE  := key:string                       tombstone
+ * </pre>
+ *
+ * Strings are a varint of (UTF-8 length + 1), 0 meaning null, followed by
+ * the bytes. Tag keys are written as their dictionary number. A payload
+ * may be Deflate-compressed (record flag bit 0); the CRC covers the stored
+ * bytes. Everything is read from one buffer with plain getters: no
+ * reflection, and no class versions that can invalidate the whole file.
+ *
+ * Storing or removing an area appends one record, so the cost of a write
+ * does not depend on how much is cached. Replaying the file keeps the last
+ * record of each key. A record torn by a crash fails its CRC; replay stops
+ * there and the tail is cut off, losing only that write. Once superseded
+ * records outnumber live ones, {@link #compact} copies the live records to
+ * a temporary file and renames it over the journal, so there is always one
+ * complete file on disk.
+ *
+ * The offset of every live entry is kept, so {@link #readAt} can load a
+ * single area back without reading the rest of the file.
+ */
+final class PharmacyCacheFile implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PharmacyCacheFile.class);
+
+    private static final byte[] MAGIC = {'G', 'P', 'F', 'C'};
+    static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 14;
+
+    static final int TYPE_DICT = 1;
+    static final int TYPE_ENTRY = 2;
+    static final int TYPE_REMOVE = 3;
+
+    private static final int FLAG_DEFLATED = 1;
+
+    // Deflate does not pay off on tiny payloads
+    private static final int MIN_COMPRESS_SIZE = 256;
+
+    // Small journals are not worth rewriting
+    private static final int MIN_DEAD_RECORDS_TO_COMPACT = 32;
+
+    private final Path file;
+    private final boolean compress;
+
+    private FileChannel channel;
+    private long end;
+
+    // Tag keys already defined in the file, by number
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    private final List<String> dictionaryKeys = new ArrayList<>();
+
+    // File offset of the live ENTRY record of each key
+    private final Map<String, Long> offsets = new HashMap<>();
+    private int deadRecords;
+
+    PharmacyCacheFile(Path file, boolean compress) {
+        this.file = file;
+        this.compress = compress;
+    }
+
+    /**
+     * One cached search area as stored in the file.
+     */
+    static final class StoredArea {
+        final String key;
+        final long savedAt;
+        final double latitude;
+        final double longitude;
+        final int radiusMeters;
+        final List<Pharmacy> pharmacies;
+
+        StoredArea(String key, long savedAt, double latitude, double longitude,
+                   int radiusMeters, List<Pharmacy> pharmacies) {
+            this.key = key;
+            this.savedAt = savedAt;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.radiusMeters = radiusMeters;
+            this.pharmacies = pharmacies;
+        }
+    }
+
+    /* =========================
+       OPEN / REPLAY
+       ========================= */
+
+    /**
+     * Replay the journal and keep it open for appending. A missing or
+     * unreadable file is replaced by an empty one.
+     *
+     * @return the live areas, in the order they were last written
+     */
+    synchronized Map<String, StoredArea> open() throws IOException {
+        closeChannel();
+        resetState();
+
+        Map<String, StoredArea> areas = new LinkedHashMap<>();
+        if (!Files.exists(file)) {
+            reset();
+            return areas;
+        }
+
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer buffer = readAll(channel);
+
+        try {
+            readHeader(buffer);
+        } catch (IOException e) {
+            logger.warn("Replacing unreadable pharmacy cache file: {}", e.getMessage());
+            closeChannel(); // Not worth reopening if the replacement fails
+            reset();
+            return areas;
+        }
+
+        int records = 0;
+        long good = buffer.position();
+        while (buffer.hasRemaining()) {
+            long offset = buffer.position();
+            try {
+                int type = buffer.get() & 0xFF;
+                ByteBuffer payload = readPayload(buffer);
+
+                if (type == TYPE_DICT) {
+                    int count = readVarInt(payload);
+                    for (int i = 0; i < count; i++) {
+                        defineKey(readString(payload));
+                    }
+                } else if (type == TYPE_ENTRY) {
+                    StoredArea area = decodeArea(payload, dictionaryKeys);
+                    areas.remove(area.key);
+                    areas.put(area.key, area);
+                    offsets.put(area.key, offset);
+                    records++;
+                } else if (type == TYPE_REMOVE) {
+                    String key = readString(payload);
+                    areas.remove(key);
+                    offsets.remove(key);
+                    records++;
+                }
+                // Unknown record types come from newer versions and are skipped
+            } catch (IOException | BufferUnderflowException e) {
+                logger.warn("Pharmacy cache journal damaged at byte {} ({}), dropping the rest",
+                        offset, e.getMessage());
+                break;
+            }
+            good = buffer.position();
+        }
+
+        if (good < channel.size()) {
+            channel.truncate(good);
+        }
+        end = good;
+        deadRecords = records - offsets.size();
+        return areas;
+    }
+
+    private static ByteBuffer readAll(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Cache file too large: " + size);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0) {
+            // keep reading
+        }
+        return buffer.flip();
+    }
+
+    /* =========================
+       READ
+       ========================= */
+
+    /**
+     * Read back the live entry of a key with a positional read, without
+     * replaying the journal.
+     *
+     * @return the stored area, or null if the key has no live entry
+     */
+    synchronized StoredArea readAt(String key) throws IOException {
+        Long offset = offsets.get(key);
+        if (offset == null) {
+            return null;
+        }
+        ensureOpen();
+
+        ByteBuffer record = readRecord(offset);
+        try {
+            record.get(); // type, always ENTRY for an offset
+            return decodeArea(readPayload(record), dictionaryKeys);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Cache record truncated", e);
+        }
+    }
+
+    /**
+     * The complete record at {@code offset}, header included.
+     */
+    private ByteBuffer readRecord(long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        readFully(offset, header);
+        int length = header.getInt(2);
+        if (length < 0 || offset + RECORD_HEADER_SIZE + length > end) {
+            throw new IOException("Cache record at byte " + offset + " runs past the journal end");
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        record.put(header.flip());
+        readFully(offset + RECORD_HEADER_SIZE, record);
+        return record.flip();
+    }
+
+    private void readFully(long position, ByteBuffer into) throws IOException {
+        while (into.hasRemaining()) {
+            int read = channel.read(into, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of pharmacy cache journal");
+            }
+            position += read;
+        }
+    }
+
+    /* =========================
+       APPEND
+       ========================= */
+
+    /**
+     * Append an area, superseding any earlier record with its key.
+     */
+    synchronized void append(StoredArea area) throws IOException {
+        ensureOpen();
+
+        Set<String> newKeys = new LinkedHashSet<>();
+        for (Pharmacy pharmacy : area.pharmacies) {
+            for (String key : pharmacy.getTags().keySet()) {
+                if (!dictionary.containsKey(key)) {
+                    newKeys.add(key);
+                }
+            }
+        }
+        if (!newKeys.isEmpty()) {
+            writeRecord(frame(TYPE_DICT, encodeDictionary(newKeys), compress));
+            newKeys.forEach(this::defineKey);
+        }
+
+        long offset = writeRecord(frame(TYPE_ENTRY, encodeArea(area, dictionary), compress));
+        if (offsets.put(area.key, offset) != null) {
+            deadRecords++;
+        }
+    }
+
+    /**
+     * Append a tombstone for a key.
+     */
+    synchronized void appendRemove(String key) throws IOException {
+        if (!offsets.containsKey(key)) {
+            return;
+        }
+        ensureOpen();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeString(new DataOutputStream(bytes), key);
+        writeRecord(frame(TYPE_REMOVE, bytes.toByteArray(), false));
+
+        offsets.remove(key);
+        // The old entry and the tombstone itself
+        deadRecords += 2;
+    }
+
+    private long writeRecord(ByteBuffer record) throws IOException {
+        long offset = end;
+        end = writeFully(channel, end, record);
+        return offset;
+    }
+
+    /**
+     * Write the whole buffer at {@code position}.
+     *
+     * @return the position after it
+     */
+    private static long writeFully(FileChannel out, long position, ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            position += out.write(bytes, position);
+        }
+        return position;
+    }
+
+    /* =========================
+       COMPACTION
+       ========================= */
+
+    synchronized boolean needsCompaction() {
+        return deadRecords >= MIN_DEAD_RECORDS_TO_COMPACT && deadRecords > offsets.size();
+    }
+
+    /**
+     * Replace the journal with its live records: copied as they are to a
+     * temporary file, forced to disk and renamed over the journal. The
+     * dictionary keeps its numbering, so records need no re-encoding and
+     * entries that are not in memory survive.
+     */
+    synchronized void compact() throws IOException {
+        ensureOpen();
+        long before = end;
+
+        List<Map.Entry<String, Long>> live = new ArrayList<>(offsets.entrySet());
+        live.sort(Map.Entry.comparingByValue());
+
+        Path tmp = temporaryFile();
+        Map<String, Long> moved = new HashMap<>();
+        long written;
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            written = writeFully(out, 0, header());
+            if (!dictionaryKeys.isEmpty()) {
+                written = writeFully(out, written, frame(TYPE_DICT, encodeDictionary(dictionaryKeys), compress));
+            }
+            for (Map.Entry<String, Long> e : live) {
+                moved.put(e.getKey(), written);
+                written = writeFully(out, written, readRecord(e.getValue()));
+            }
+            out.force(true);
+        } catch (IOException e) {
+            // The journal is untouched until the rename
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+
+        replaceJournal(tmp);
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        offsets.clear();
+        offsets.putAll(moved);
+        end = written;
+        deadRecords = 0;
+
+        logger.info("Pharmacy cache compacted: {} entries, {} KiB -> {} KiB",
+                offsets.size(), before / 1024, end / 1024);
+    }
+
+    /**
+     * Start over with an empty journal.
+     */
+    synchronized void reset() throws IOException {
+        Path tmp = temporaryFile();
+        long written;
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            written = writeFully(out, 0, header());
+            out.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+
+        replaceJournal(tmp);
+        resetState();
+        end = written;
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private Path temporaryFile() {
+        return file.resolveSibling(file.getFileName() + ".tmp");
+    }
+
+    /**
+     * Close the journal and rename {@code tmp} over it. When the rename
+     * fails the journal that was open is reopened, so appends and reads
+     * keep working on it with the state in memory unchanged.
+     */
+    private void replaceJournal(Path tmp) throws IOException {
+        boolean wasOpen = channel != null;
+        closeChannel();
+        try {
+            moveAtomically(tmp, file);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            if (wasOpen) {
+                try {
+                    channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                } catch (IOException reopen) {
+                    e.addSuppressed(reopen);
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Rename {@code source} to {@code target}, replacing it in one step
+     * where the file system allows.
+     */
+    static void moveAtomically(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /* =========================
+       STATE
+       ========================= */
+
+    @Override
+    public synchronized void close() throws IOException {
+        closeChannel();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (channel == null) {
+            throw new IOException("Pharmacy cache journal is not open");
+        }
+    }
+
+    private void closeChannel() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private void resetState() {
+        dictionary.clear();
+        dictionaryKeys.clear();
+        offsets.clear();
+        deadRecords = 0;
+        end = 0;
+    }
+
+    private void defineKey(String key) {
+        if (dictionary.putIfAbsent(key, dictionaryKeys.size()) == null) {
+            dictionaryKeys.add(key);
+        }
+    }
+
+    private ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC).putShort((short) VERSION).putShort((short) (compress ? FLAG_DEFLATED : 0));
+        return header.flip();
+    }
+
+    /* =========================
+       ENCODING
+       ========================= */
+
+    private static byte[] encodeDictionary(Collection<String> keys) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeVarInt(out, keys.size());
+        for (String key : keys) {
+            writeString(out, key);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeArea(StoredArea area, Map<String, Integer> dictionary) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + area.pharmacies.size() * 128);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        writeString(out, area.key);
+        out.writeLong(area.savedAt);
+        out.writeDouble(area.latitude);
+        out.writeDouble(area.longitude);
+        out.writeInt(area.radiusMeters);
+
+        writeVarInt(out, area.pharmacies.size());
+        for (Pharmacy p : area.pharmacies) {
+            writeString(out, p.getId());
+            writeString(out, p.getName());
+            out.writeDouble(p.getLatitude());
+            out.writeDouble(p.getLongitude());
+            writeString(out, p.getAddress());
+            writeString(out, p.getPhone());
+            writeString(out, p.getOpeningHours());
+            out.writeDouble(p.getDistance());
+            out.writeBoolean(p.isOpen());
+
+            Map<String, String> tags = p.getTags();
+            writeVarInt(out, tags.size());
+            for (Map.Entry<String, String> tag : tags.entrySet()) {
+                writeVarInt(out, dictionary.get(tag.getKey()));
+                writeString(out, tag.getValue());
+            }
+
+            List<double[]> geometry = p.hasGeometry() ? p.getGeometry() : List.of();
+            writeVarInt(out, geometry.size());
+            for (double[] point : geometry) {
+                out.writeDouble(point[0]);
+                out.writeDouble(point[1]);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static ByteBuffer frame(int type, byte[] raw, boolean compress) {
+        byte[] stored = raw;
+        int flags = 0;
+
+        if (compress && raw.length >= MIN_COMPRESS_SIZE) {
+            byte[] deflated = deflate(raw);
+            if (deflated.length < raw.length) {
+                stored = deflated;
+                flags = FLAG_DEFLATED;
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(stored);
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + stored.length);
+        record.put((byte) type).put((byte) flags)
+                .putInt(stored.length).putInt(raw.length).putInt((int) crc.getValue())
+                .put(stored);
+        return record.flip();
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2);
+            byte[] chunk = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, utf8.length + 1);
+        out.write(utf8);
+    }
+
+    /* =========================
+       DECODING
+       ========================= */
+
+    private static void readHeader(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER_SIZE) {
+            throw new IOException("Cache file truncated");
+        }
+        for (byte b : MAGIC) {
+            if (buffer.get() != b) {
+                throw new IOException("Not a pharmacy cache file");
+            }
+        }
+        int version = buffer.getShort() & 0xFFFF;
+        if (version != VERSION) {
+            throw new IOException("Unsupported cache file version " + version);
+        }
+        buffer.getShort(); // writer flags, informational
+    }
+
+    /**
+     * Payload of the record at the buffer position (after its type byte),
+     * verified and inflated. Advances the buffer past the record.
+     */
+    private static ByteBuffer readPayload(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < RECORD_HEADER_SIZE - 1) {
+            throw new IOException("Cache record truncated");
+        }
+        int flags = buffer.get() & 0xFF;
+        int length = buffer.getInt();
+        int rawLength = buffer.getInt();
+        int expectedCrc = buffer.getInt();
+
+        if (length < 0 || rawLength < 0 || length > buffer.remaining()) {
+            throw new IOException("Cache record truncated");
+        }
+
+        ByteBuffer stored = buffer.slice(buffer.position(), length);
+        buffer.position(buffer.position() + length);
+
+        CRC32 crc = new CRC32();
+        crc.update(stored.duplicate());
+        if ((int) crc.getValue() != expectedCrc) {
+            throw new IOException("Cache record checksum mismatch");
+        }
+
+        if ((flags & FLAG_DEFLATED) == 0) {
+            return stored;
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored);
+            ByteBuffer raw = ByteBuffer.allocate(rawLength);
+            while (raw.hasRemaining() && !inflater.finished()) {
+                if (inflater.inflate(raw) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Cache record truncated");
+                }
+            }
+            return raw.flip();
+        } catch (DataFormatException e) {
+            throw new IOException("Cache record corrupt", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static StoredArea decodeArea(ByteBuffer in, List<String> dictionary) throws IOException {
+        String key = readString(in);
+        long savedAt = in.getLong();
+        double latitude = in.getDouble();
+        double longitude = in.getDouble();
+        int radiusMeters = in.getInt();
+
+        int count = readVarInt(in);
+        List<Pharmacy> pharmacies = new ArrayList<>(count);
+        List<String> tagPairs = new ArrayList<>();
+
+        for (int i = 0; i < count; i++) {
+            Pharmacy p = new Pharmacy(readString(in), readString(in), in.getDouble(), in.getDouble());
+            p.setAddress(readString(in));
+            p.setPhone(readString(in));
+            p.setOpeningHours(readString(in));
+            p.setDistance(in.getDouble());
+            p.setOpen(in.get() != 0);
+
+            int tagCount = readVarInt(in);
+            tagPairs.clear();
+            for (int t = 0; t < tagCount; t++) {
+                int keyIndex = readVarInt(in);
+                if (keyIndex >= dictionary.size()) {
+                    throw new IOException("Unknown tag key " + keyIndex);
+                }
+                tagPairs.add(dictionary.get(keyIndex));
+                tagPairs.add(readString(in));
+            }
+            p.setTags(PharmacyTags.fromPairs(tagPairs));
+
+            int points = readVarInt(in);
+            for (int g = 0; g < points; g++) {
+                p.addGeometryPoint(in.getDouble(), in.getDouble());
+            }
+            pharmacies.add(p);
+        }
+
+        return new StoredArea(key, savedAt, latitude, longitude, radiusMeters, pharmacies);
+    }
+
+    private static int readVarInt(ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        int length = readVarInt(in) - 1;
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.remaining()) {
+            throw new IOException("String runs past record end");
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+}
@@ -0,0 +1,269 @@
+package com.pharmalocator.services;
+
+import com.pharmalocator.models.DistanceKernel;
+import com.pharmalocator.models.Pharmacy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory store of pharmacies split into fixed lat/lon grid cells.
+ *
+ * Every cell is downloaded and expires on its own, so a search circle that
+ * mostly overlaps earlier searches only needs its missing cells fetched.
+ * At most {@code maxCells} cells are kept; cells are only added by
+ * {@link #store}, which drops long expired cells and then the oldest ones.
+ */
+public class PharmacyCellStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(PharmacyCellStore.class);
+
+    private static final double METERS_PER_DEGREE = 111_320.0;
+
+    private final double cellSize;
+    private final long maxAgeMillis;
+    private final int maxCells;
+    private final Map<Long, Cell> cells = new ConcurrentHashMap<>();
+
+    /**
+     * @param cellSizeDegrees edge length of a cell in degrees
+     * @param maxAgeMillis    age after which a cell must be downloaded again
+     * @param maxCells        cells kept before the oldest are dropped
+     */
+    public PharmacyCellStore(double cellSizeDegrees, long maxAgeMillis, int maxCells) {
+        this.cellSize = cellSizeDegrees;
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxCells = Math.max(1, maxCells);
+    }
+
+    /**
+     * Pharmacies of one downloaded cell.
+     */
+    private static class Cell {
+        final List<Pharmacy> pharmacies;
+        final long fetchedAt;
+
+        Cell(List<Pharmacy> pharmacies, long fetchedAt) {
+            this.pharmacies = pharmacies;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    /* =========================
+       CELL GEOMETRY
+       ========================= */
+
+    /**
+     * Cells intersecting the bounding box of a search circle, sorted by row
+     * then column.
+     */
+    public List<Long> cellsCovering(double lat, double lon, int radiusMeters) {
+        double dLat = radiusMeters / METERS_PER_DEGREE;
+        double dLon = dLat / Math.max(0.01, Math.cos(Math.toRadians(lat)));
+
+        int minRow = row(lat - dLat);
+        int maxRow = row(lat + dLat);
+        int minCol = col(lon - dLon);
+        int maxCol = col(lon + dLon);
+
+        List<Long> covering = new ArrayList<>();
+        for (int r = minRow; r <= maxRow; r++) {
+            for (int c = minCol; c <= maxCol; c++) {
+                covering.add(key(r, c));
+            }
+        }
+        return covering;
+    }
+
+    /**
+     * Cells that were never downloaded or whose data has expired.
+     */
+    public List<Long> missingCells(List<Long> wanted) {
+        long now = System.currentTimeMillis();
+        List<Long> missing = new ArrayList<>();
+        for (Long key : wanted) {
+            Cell cell = cells.get(key);
+            if (cell == null || now - cell.fetchedAt > maxAgeMillis) {
+                missing.add(key);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Bounding boxes (south, west, north, east) covering the given cells.
+     * Neighbouring cells of the same row are merged into runs, and identical
+     * runs of consecutive rows into one box, so a query needs a handful of
+     * boxes instead of one per cell.
+     */
+    public List<double[]> boundingBoxes(Collection<Long> keys) {
+        Set<Long> sorted = new TreeSet<>(Comparator
+                .comparingInt(PharmacyCellStore::rowOf)
+                .thenComparingInt(PharmacyCellStore::colOf));
+        sorted.addAll(keys);
+        List<double[]> boxes = new ArrayList<>();
+
+        int runRow = 0;
+        int runStart = 0;
+        int runEnd = 0;
+        boolean open = false;
+
+        for (Long key : sorted) {
+            int r = rowOf(key);
+            int c = colOf(key);
+
+            if (open && r == runRow && c == runEnd + 1) {
+                runEnd = c;
+                continue;
+            }
+            if (open) {
+                boxes.add(box(runRow, runStart, runEnd));
+            }
+            runRow = r;
+            runStart = c;
+            runEnd = c;
+            open = true;
+        }
+        if (open) {
+            boxes.add(box(runRow, runStart, runEnd));
+        }
+        return mergeRows(boxes);
+    }
+
+    /**
+     * Runs spanning the same columns on consecutive rows become one box.
+     */
+    private List<double[]> mergeRows(List<double[]> runs) {
+        List<double[]> merged = new ArrayList<>();
+        for (double[] run : runs) {
+            double[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && last[1] == run[1] && last[3] == run[3] && last[2] == run[0]) {
+                last[2] = run[2];
+            } else {
+                merged.add(run);
+            }
+        }
+        return merged;
+    }
+
+    /* =========================
+       DATA
+       ========================= */
+
+    /**
+     * Store a download covering exactly the given cells. Every requested cell
+     * is marked fresh, including the empty ones; pharmacies lying outside the
+     * requested cells (ways overlapping the edge) are ignored. Only pass
+     * downloads that completed: a truncated one would blank its cells.
+     */
+    public void store(Collection<Long> fetchedCells, List<Pharmacy> pharmacies) {
+        Map<Long, List<Pharmacy>> byCell = new HashMap<>();
+        for (Long key : fetchedCells) {
+            byCell.put(key, new ArrayList<>());
+        }
+
+        for (Pharmacy pharmacy : pharmacies) {
+            List<Pharmacy> bucket = byCell.get(cellOf(pharmacy.getLatitude(), pharmacy.getLongitude()));
+            if (bucket != null) {
+                bucket.add(pharmacy);
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        byCell.forEach((key, list) -> cells.put(key, new Cell(list, now)));
+
+        sweep(now);
+
+        logger.debug("Stored {} pharmacies in {} cells ({} cells cached)",
+                pharmacies.size(), byCell.size(), cells.size());
+    }
+
+    /**
+     * Drop cells nobody refreshed for a long time, then the oldest cells
+     * while over {@code maxCells}.
+     */
+    private synchronized void sweep(long now) {
+        cells.values().removeIf(cell -> now - cell.fetchedAt > 2 * maxAgeMillis);
+
+        int excess = cells.size() - maxCells;
+        if (excess <= 0) {
+            return;
+        }
+        List<Map.Entry<Long, Cell>> oldestFirst = new ArrayList<>(cells.entrySet());
+        oldestFirst.sort(Comparator.comparingLong(entry -> entry.getValue().fetchedAt));
+        for (int i = 0; i < excess && i < oldestFirst.size(); i++) {
+            cells.remove(oldestFirst.get(i).getKey());
+        }
+        logger.debug("Dropped {} oldest cells (limit {})", excess, maxCells);
+    }
+
+    /**
+     * Known pharmacies of the given cells lying (approximately) within the
+     * search circle. Distances are not set; rank the result with
+     * {@link DistanceKernel#nearest}.
+     */
+    public List<Pharmacy> collect(Collection<Long> keys, double lat, double lon, int radiusMeters) {
+        DistanceKernel kernel = new DistanceKernel(lat, lon);
+        double maxD2 = DistanceKernel.squaredDegreesWithin(radiusMeters / 1000.0);
+        List<Pharmacy> result = new ArrayList<>();
+
+        for (Long key : keys) {
+            Cell cell = cells.get(key);
+            if (cell == null) {
+                continue;
+            }
+            for (Pharmacy pharmacy : cell.pharmacies) {
+                if (kernel.squaredDegrees(pharmacy.getLatitude(), pharmacy.getLongitude()) <= maxD2) {
+                    result.add(pharmacy);
+                }
+            }
+        }
+        return result;
+    }
+
+    public long cellOf(double lat, double lon) {
+        return key(row(lat), col(lon));
+    }
+
+    /* =========================
+       KEY HELPERS
+       ========================= */
+
+    private int row(double lat) {
+        return (int) Math.floor(lat / cellSize);
+    }
+
+    private int col(double lon) {
+        return (int) Math.floor(lon / cellSize);
+    }
+
+    private static long key(int row, int col) {
+        return ((long) row << 32) | (col & 0xffffffffL);
+    }
+
+    private static int rowOf(Long key) {
+        return (int) (key >> 32);
+    }
+
+    private static int colOf(Long key) {
+        return key.intValue();
+    }
+
+    private double[] box(int row, int fromCol, int toCol) {
+        return new double[]{
+                row * cellSize,
+                fromCol * cellSize,
+                (row + 1) * cellSize,
+                (toCol + 1) * cellSize
+        };
+    }
+}
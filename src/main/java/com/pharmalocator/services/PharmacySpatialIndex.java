@@ -0,0 +1,343 @@
+package com.pharmalocator.services;
+
+import com.pharmalocator.config.AppConfig;
+import com.pharmalocator.models.DistanceKernel;
+import com.pharmalocator.models.Pharmacy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Uniform lat/lon grid over pharmacies for nearest-N and radius queries.
+ *
+ * A nearest query visits rings of cells around the query point and stops as
+ * soon as no unvisited cell can hold anything closer than the current N-th
+ * candidate, so its cost depends on the local density, not on how many
+ * pharmacies are indexed. Candidates are ranked with the cheap
+ * {@link DistanceKernel} metric; exact distances are only computed for the
+ * returned pharmacies.
+ *
+ * The shared instance collects the pharmacies the application has seen
+ * (API downloads, memory cache and database cache), up to
+ * {@code index.memory.max.pharmacies}; the ones indexed longest ago are
+ * dropped first, and the cache sweep drops those older than the cache TTL.
+ */
+public class PharmacySpatialIndex {
+
+    private static final double METERS_PER_DEGREE = 111_320.0;
+    private static final double DEFAULT_CELL_DEGREES = 0.01;
+    private static final int DEFAULT_MAX_SHARED = 50_000;
+
+    private static PharmacySpatialIndex instance;
+
+    private final double cellSize;
+    private final Map<Long, List<Pharmacy>> cells = new HashMap<>();
+    private final Map<String, Pharmacy> byId = new HashMap<>();
+    // Insertion time per id, oldest first
+    private final LinkedHashMap<String, Long> insertedAt = new LinkedHashMap<>();
+    private final int maxSize;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public PharmacySpatialIndex() {
+        this(DEFAULT_CELL_DEGREES, 0);
+    }
+
+    /**
+     * @param cellSizeDegrees edge length of a grid cell; around the typical
+     *                        distance between neighbouring pharmacies works best
+     * @param maxSize         pharmacies kept before the oldest are dropped,
+     *                        0 for no limit
+     */
+    public PharmacySpatialIndex(double cellSizeDegrees, int maxSize) {
+        this.cellSize = cellSizeDegrees;
+        this.maxSize = maxSize;
+    }
+
+    public static synchronized PharmacySpatialIndex getInstance() {
+        if (instance == null) {
+            instance = new PharmacySpatialIndex(DEFAULT_CELL_DEGREES, Math.max(1,
+                    AppConfig.getInstance().getIntProperty("index.memory.max.pharmacies", DEFAULT_MAX_SHARED)));
+        }
+        return instance;
+    }
+
+    /* =========================
+       UPDATES
+       ========================= */
+
+    /**
+     * Add a pharmacy, replacing any previous version with the same id.
+     */
+    public void insert(Pharmacy pharmacy) {
+        lock.writeLock().lock();
+        try {
+            insertLocked(pharmacy);
+            trimLocked();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void insertAll(Collection<Pharmacy> pharmacies) {
+        lock.writeLock().lock();
+        try {
+            for (Pharmacy pharmacy : pharmacies) {
+                insertLocked(pharmacy);
+            }
+            trimLocked();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(String id) {
+        lock.writeLock().lock();
+        try {
+            removeLocked(id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeAll(Collection<String> ids) {
+        lock.writeLock().lock();
+        try {
+            for (String id : ids) {
+                removeLocked(id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            cells.clear();
+            byId.clear();
+            insertedAt.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drop the pharmacies indexed more than {@code maxAgeMillis} ago.
+     *
+     * @return number of pharmacies dropped
+     */
+    public int evictOlderThan(long maxAgeMillis) {
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        int dropped = 0;
+        lock.writeLock().lock();
+        try {
+            Iterator<Map.Entry<String, Long>> it = insertedAt.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Long> oldest = it.next();
+                if (oldest.getValue() >= cutoff) {
+                    break; // Insertion order: the rest is younger
+                }
+                it.remove();
+                removeLocked(oldest.getKey());
+                dropped++;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return dropped;
+    }
+
+    private void insertLocked(Pharmacy pharmacy) {
+        if (pharmacy == null || pharmacy.getId() == null) {
+            return;
+        }
+        removeLocked(pharmacy.getId());
+        byId.put(pharmacy.getId(), pharmacy);
+        insertedAt.put(pharmacy.getId(), System.currentTimeMillis());
+        cells.computeIfAbsent(cellOf(pharmacy.getLatitude(), pharmacy.getLongitude()),
+                k -> new ArrayList<>(4)).add(pharmacy);
+    }
+
+    /**
+     * Drop the oldest pharmacies while over {@code maxSize}.
+     */
+    private void trimLocked() {
+        if (maxSize <= 0) {
+            return;
+        }
+        Iterator<String> it = insertedAt.keySet().iterator();
+        while (byId.size() > maxSize && it.hasNext()) {
+            String id = it.next();
+            it.remove();
+            removeLocked(id);
+        }
+    }
+
+    private void removeLocked(String id) {
+        insertedAt.remove(id);
+        Pharmacy old = byId.remove(id);
+        if (old == null) {
+            return;
+        }
+        long key = cellOf(old.getLatitude(), old.getLongitude());
+        List<Pharmacy> bucket = cells.get(key);
+        if (bucket != null) {
+            bucket.remove(old);
+            if (bucket.isEmpty()) {
+                cells.remove(key);
+            }
+        }
+    }
+
+    /* =========================
+       QUERIES
+       ========================= */
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return byId.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copy of every indexed pharmacy.
+     */
+    public List<Pharmacy> snapshot() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(byId.values());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Up to {@code k} pharmacies within {@code radiusMeters}, nearest first.
+     * Distances are set relative to the query point.
+     */
+    public List<Pharmacy> nearest(double lat, double lon, int k, int radiusMeters) {
+        if (k <= 0) {
+            return new ArrayList<>();
+        }
+
+        DistanceKernel kernel = new DistanceKernel(lat, lon);
+        double cosLat = Math.max(0.01, Math.cos(Math.toRadians(lat)));
+        double radiusDeg = radiusMeters / METERS_PER_DEGREE;
+        double maxD2 = DistanceKernel.squaredDegreesWithin(radiusMeters / 1000.0);
+
+        // Farthest candidate on top, so it is the one dropped
+        PriorityQueue<Candidate> best = new PriorityQueue<>(Math.min(k, 256) + 1,
+                Comparator.comparingDouble((Candidate c) -> c.d2).reversed());
+
+        lock.readLock().lock();
+        try {
+            int centerRow = row(lat);
+            int centerCol = col(lon);
+            int maxRing = (int) Math.ceil(radiusDeg / (cellSize * cosLat)) + 1;
+            int seen = 0;
+
+            for (int ring = 0; ring <= maxRing && seen < byId.size(); ring++) {
+                for (int r = centerRow - ring; r <= centerRow + ring; r++) {
+                    boolean edgeRow = r == centerRow - ring || r == centerRow + ring;
+                    int step = edgeRow ? 1 : Math.max(1, 2 * ring);
+
+                    for (int c = centerCol - ring; c <= centerCol + ring; c += step) {
+                        List<Pharmacy> bucket = cells.get(key(r, c));
+                        if (bucket == null) {
+                            continue;
+                        }
+                        seen += bucket.size();
+                        for (Pharmacy pharmacy : bucket) {
+                            double d2 = kernel.squaredDegrees(pharmacy.getLatitude(), pharmacy.getLongitude());
+                            if (d2 > maxD2) {
+                                continue;
+                            }
+                            if (best.size() < k) {
+                                best.add(new Candidate(pharmacy, d2));
+                            } else if (d2 < best.peek().d2) {
+                                best.poll();
+                                best.add(new Candidate(pharmacy, d2));
+                            }
+                        }
+                    }
+                }
+
+                // Cells beyond this ring are at least ring cell widths away
+                double reach = ring * cellSize * cosLat;
+                if (best.size() == k && best.peek().d2 <= reach * reach) {
+                    break;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        return finish(best, kernel, radiusMeters);
+    }
+
+    /**
+     * All pharmacies within {@code radiusMeters}, nearest first.
+     */
+    public List<Pharmacy> withinRadius(double lat, double lon, int radiusMeters) {
+        return nearest(lat, lon, Integer.MAX_VALUE - 1, radiusMeters);
+    }
+
+    private List<Pharmacy> finish(Collection<Candidate> candidates, DistanceKernel kernel, int radiusMeters) {
+        double radiusKm = radiusMeters / 1000.0;
+        List<Pharmacy> result = new ArrayList<>(candidates.size());
+
+        for (Candidate candidate : candidates) {
+            Pharmacy pharmacy = candidate.pharmacy;
+            double distance = kernel.exactKm(pharmacy.getLatitude(), pharmacy.getLongitude());
+            if (distance <= radiusKm) {
+                // The indexed instance is shared: the distance goes on a copy
+                result.add(pharmacy.withDistance(distance));
+            }
+        }
+
+        result.sort(Comparator.comparingDouble(Pharmacy::getDistance));
+        return result;
+    }
+
+    private static class Candidate {
+        final Pharmacy pharmacy;
+        final double d2;
+
+        Candidate(Pharmacy pharmacy, double d2) {
+            this.pharmacy = pharmacy;
+            this.d2 = d2;
+        }
+    }
+
+    /* =========================
+       KEY HELPERS
+       ========================= */
+
+    private long cellOf(double lat, double lon) {
+        return key(row(lat), col(lon));
+    }
+
+    private int row(double lat) {
+        return (int) Math.floor(lat / cellSize);
+    }
+
+    private int col(double lon) {
+        return (int) Math.floor(lon / cellSize);
+    }
+
+    private static long key(int row, int col) {
+        return ((long) row << 32) | (col & 0xffffffffL);
+    }
+}
@@ -0,0 +1,438 @@
+package com.pharmalocator.services;
+
+import com.pharmalocator.config.AppConfig;
+import com.pharmalocator.models.Pharmacy;
+import com.pharmalocator.services.DatabaseService.RegionalDatasetInfo;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Offline copy of every pharmacy in a configured region.
+ *
+ * The region is downloaded with a few large tiled Overpass queries by a
+ * scheduled background job and stored in the database. Searches falling
+ * entirely inside the region are then answered locally, without any network
+ * call.
+ *
+ * Between full imports the copy is kept current with delta refreshes that
+ * only download the pharmacies changed since the snapshot's
+ * {@code timestamp_osm_base}, using Overpass {@code newer:} filters.
+ */
+public class RegionalDatasetService {
+
+    private static final Logger logger = LoggerFactory.getLogger(RegionalDatasetService.class);
+
+    private static final double METERS_PER_DEGREE = 111_320.0;
+
+    private static RegionalDatasetService instance;
+
+    private final AppConfig config;
+    private final boolean enabled;
+    private final String regionName;
+    private final double[] regionBox;
+    private final int tilesPerSide;
+    private final long refreshMillis;
+    private final long deltaMillis;
+
+    private final OkHttpClient httpClient;
+    private final OverpassEndpointPool overpassPool;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Regional-Dataset");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    // Replaced after each load, import or delta refresh
+    private volatile Dataset dataset;
+
+    private RegionalDatasetService() {
+        this.config = AppConfig.getInstance();
+        this.regionName = config.getProperty("offline.region.name", "default");
+        this.regionBox = parseBox(config.getProperty("offline.region.bbox"));
+        this.enabled = config.getBooleanProperty("offline.region.enabled", false) && regionBox != null;
+        this.tilesPerSide = Math.max(1, config.getIntProperty("offline.region.tiles", 2));
+        this.refreshMillis = TimeUnit.HOURS.toMillis(config.getIntProperty("offline.region.refresh.hours", 168));
+        this.deltaMillis = TimeUnit.HOURS.toMillis(config.getIntProperty("offline.region.delta.hours", 6));
+
+        // Country-sized answers take minutes to produce and to download
+        this.httpClient = HttpClientFactory.getInstance().newUncachedClient(15, 200);
+        this.overpassPool = new OverpassEndpointPool(config.getOverpassUrls());
+    }
+
+    public static synchronized RegionalDatasetService getInstance() {
+        if (instance == null) {
+            instance = new RegionalDatasetService();
+        }
+        return instance;
+    }
+
+    /**
+     * The imported region: its description and a spatial index over its
+     * pharmacies. Delta refreshes update the index in place.
+     */
+    private static class Dataset {
+        final RegionalDatasetInfo info;
+        final PharmacySpatialIndex index;
+
+        Dataset(RegionalDatasetInfo info, PharmacySpatialIndex index) {
+            this.info = info;
+            this.index = index;
+        }
+    }
+
+    private static PharmacySpatialIndex indexOf(List<Pharmacy> pharmacies) {
+        PharmacySpatialIndex index = new PharmacySpatialIndex();
+        index.insertAll(pharmacies);
+        return index;
+    }
+
+    /* =========================
+       LIFECYCLE
+       ========================= */
+
+    /**
+     * Load the stored dataset and schedule the periodic refresh, all in the
+     * background. Does nothing unless {@code offline.region.enabled} is set.
+     */
+    public void start() {
+        if (!enabled) {
+            logger.debug("Offline regional dataset disabled");
+            return;
+        }
+
+        scheduler.execute(this::loadFromDatabase);
+
+        long checkEvery = Math.max(1,
+                TimeUnit.MILLISECONDS.toMinutes(Math.min(refreshMillis, deltaMillis)) / 12);
+        scheduler.scheduleWithFixedDelay(this::refreshIfDue, 1, checkEvery, TimeUnit.MINUTES);
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /* =========================
+       LOOKUP
+       ========================= */
+
+    /**
+     * @return true if the whole search circle lies inside the imported region
+     */
+    public boolean covers(double lat, double lon, int radiusMeters) {
+        Dataset current = dataset;
+        if (current == null) {
+            return false;
+        }
+
+        RegionalDatasetInfo info = current.info;
+        double dLat = radiusMeters / METERS_PER_DEGREE;
+        double dLon = dLat / Math.max(0.01, Math.cos(Math.toRadians(lat)));
+
+        return lat - dLat >= info.getSouth() && lat + dLat <= info.getNorth()
+                && lon - dLon >= info.getWest() && lon + dLon <= info.getEast();
+    }
+
+    /**
+     * Up to {@code limit} pharmacies of the region within the search circle,
+     * nearest first. Distances are set relative to the circle center.
+     */
+    public List<Pharmacy> nearest(double lat, double lon, int limit, int radiusMeters) {
+        Dataset current = dataset;
+        if (current == null) {
+            return new ArrayList<>();
+        }
+        return current.index.nearest(lat, lon, limit, radiusMeters);
+    }
+
+    /* =========================
+       IMPORT
+       ========================= */
+
+    private void loadFromDatabase() {
+        DatabaseService db = DatabaseService.getInstance();
+        RegionalDatasetInfo info = db.getRegionalDatasetInfo();
+
+        if (info == null || !info.getRegion().equals(regionName)) {
+            logger.info("No offline dataset for region '{}' yet", regionName);
+            return;
+        }
+
+        List<Pharmacy> pharmacies = db.getRegionalPharmacies();
+        dataset = new Dataset(info, indexOf(pharmacies));
+        logger.info("Offline dataset '{}' loaded: {} pharmacies", regionName, pharmacies.size());
+    }
+
+    /**
+     * Full import when there is no usable snapshot or it is older than
+     * {@code offline.region.refresh.hours}; otherwise a delta refresh once
+     * the snapshot is older than {@code offline.region.delta.hours}.
+     */
+    private void refreshIfDue() {
+        Dataset current = dataset;
+        long now = System.currentTimeMillis();
+
+        try {
+            if (current == null || current.info.getOsmBase() == null
+                    || now - current.info.getImportedAt() >= refreshMillis) {
+                importRegion();
+            } else if (now - snapshotMillis(current.info) >= deltaMillis) {
+                refreshDelta(current);
+            }
+        } catch (IOException e) {
+            logger.warn("Offline dataset refresh failed, will retry later: {}", e.getMessage());
+        } catch (Exception e) {
+            logger.error("Offline dataset refresh failed", e);
+        }
+    }
+
+    private static long snapshotMillis(RegionalDatasetInfo info) {
+        try {
+            return Instant.parse(info.getOsmBase()).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return info.getImportedAt();
+        }
+    }
+
+    /**
+     * Download the whole region tile by tile and replace the stored copy.
+     * Nothing is replaced unless every tile succeeded.
+     */
+    private void importRegion() throws IOException {
+        long started = System.currentTimeMillis();
+        logger.info("Importing offline dataset '{}' in {} tiles",
+                regionName, tilesPerSide * tilesPerSide);
+
+        // Ways crossing a tile edge come back from both tiles
+        Map<String, Pharmacy> byId = new LinkedHashMap<>();
+
+        String osmBase = null;
+
+        for (double[] tile : tiles()) {
+            OverpassResponseParser parser = new OverpassResponseParser();
+            try (Response response = overpassPool.query(httpClient, buildQuery(tile, null), config.getUserAgent())) {
+                parser.parse(response.body().charStream(), pharmacy -> {
+                    byId.put(pharmacy.getId(), pharmacy);
+                    return true;
+                });
+            }
+            requireComplete(parser, "import tile");
+            osmBase = earliest(osmBase, parser.getTimestampOsmBase());
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+        }
+
+        List<Pharmacy> pharmacies = new ArrayList<>(byId.values());
+        RegionalDatasetInfo info = new RegionalDatasetInfo(regionName,
+                regionBox[0], regionBox[1], regionBox[2], regionBox[3], started, osmBase);
+
+        DatabaseService.getInstance().replaceRegionalDataset(info, pharmacies);
+        dataset = new Dataset(info, indexOf(pharmacies));
+
+        logger.info("Offline dataset '{}' imported: {} pharmacies in {} s", regionName,
+                pharmacies.size(), (System.currentTimeMillis() - started) / 1000);
+    }
+
+    /**
+     * Download only the pharmacies created or modified since the snapshot and
+     * merge them in. OSM deletions (and pharmacies that lost their tag) are
+     * found by comparing the region's element count; only when it differs are
+     * the current ids downloaded to find which ones disappeared.
+     */
+    private void refreshDelta(Dataset current) throws IOException {
+        RegionalDatasetInfo previous = current.info;
+        logger.info("Delta refresh of offline dataset '{}' since {}", regionName, previous.getOsmBase());
+
+        Map<String, Pharmacy> changedById = new LinkedHashMap<>();
+        String osmBase = null;
+
+        for (double[] tile : tiles()) {
+            OverpassResponseParser parser = new OverpassResponseParser();
+            try (Response response = overpassPool.query(
+                    httpClient, buildQuery(tile, previous.getOsmBase()), config.getUserAgent())) {
+                parser.parse(response.body().charStream(), pharmacy -> {
+                    changedById.put(pharmacy.getId(), pharmacy);
+                    return true;
+                });
+            }
+            // Moving the snapshot date past a truncated delta would lose
+            // the changes it did not return
+            requireComplete(parser, "delta tile");
+            osmBase = earliest(osmBase, parser.getTimestampOsmBase());
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+        }
+
+        Map<String, Pharmacy> byId = new LinkedHashMap<>();
+        for (Pharmacy pharmacy : current.index.snapshot()) {
+            byId.put(pharmacy.getId(), pharmacy);
+        }
+        byId.putAll(changedById);
+
+        Set<String> deleted = new HashSet<>();
+        long remoteCount = countRegion();
+        if (remoteCount >= 0 && remoteCount != byId.size()) {
+            Set<String> remoteIds = fetchRegionIds();
+            for (String id : byId.keySet()) {
+                if (!remoteIds.contains(id)) {
+                    deleted.add(id);
+                }
+            }
+            byId.keySet().removeAll(deleted);
+
+            if (byId.size() != remoteIds.size()) {
+                logger.warn("Offline dataset has {} pharmacies, Overpass {}; next full import will resync",
+                        byId.size(), remoteIds.size());
+            }
+        }
+
+        List<Pharmacy> changed = new ArrayList<>(changedById.values());
+        RegionalDatasetInfo info = new RegionalDatasetInfo(regionName,
+                previous.getSouth(), previous.getWest(), previous.getNorth(), previous.getEast(),
+                previous.getImportedAt(), osmBase != null ? osmBase : previous.getOsmBase());
+
+        DatabaseService.getInstance().applyRegionalDelta(info, changed, deleted, byId.size());
+        current.index.insertAll(changed);
+        current.index.removeAll(deleted);
+        dataset = new Dataset(info, current.index);
+    }
+
+    private long countRegion() throws IOException {
+        OverpassResponseParser parser = new OverpassResponseParser();
+        try (Response response = overpassPool.query(
+                httpClient, "[out:json][timeout:180];" + regionSet() + "out count;", config.getUserAgent())) {
+            parser.parse(response.body().charStream(), pharmacy -> true);
+        }
+        requireComplete(parser, "count");
+        return parser.getElementCount();
+    }
+
+    private Set<String> fetchRegionIds() throws IOException {
+        Set<String> ids = new HashSet<>();
+        OverpassResponseParser parser = new OverpassResponseParser();
+        try (Response response = overpassPool.query(
+                httpClient, "[out:json][timeout:180];" + regionSet() + "out ids;", config.getUserAgent())) {
+            parser.parseIds(response.body().charStream(), ids);
+        }
+        // A truncated id list would delete pharmacies that still exist
+        requireComplete(parser, "id list");
+        return ids;
+    }
+
+    /**
+     * Overpass reports timeouts and memory exhaustion as a remark on an
+     * HTTP 200 answer; treat those like a failed request, so the refresh
+     * is retried later and the stored dataset is left as it is.
+     */
+    private static void requireComplete(OverpassResponseParser parser, String what) throws IOException {
+        if (parser.hasErrorRemark()) {
+            throw new IOException("Overpass " + what + " incomplete: " + parser.getRemark());
+        }
+    }
+
+    private String regionSet() {
+        String bbox = bbox(regionBox);
+        return "(node[\"amenity\"=\"pharmacy\"]" + bbox + ";"
+                + "way[\"amenity\"=\"pharmacy\"]" + bbox + ";);";
+    }
+
+    /**
+     * Only the center of ways is needed offline, so "out center" keeps the
+     * download far smaller than full geometries.
+     *
+     * @param newerThan if set, only elements changed after this OSM date
+     */
+    private String buildQuery(double[] box, String newerThan) {
+        String filter = newerThan != null ? "(newer:\"" + newerThan + "\")" : "";
+        String bbox = bbox(box);
+        return "[out:json][timeout:180];("
+                + "node[\"amenity\"=\"pharmacy\"]" + filter + bbox + ";"
+                + "way[\"amenity\"=\"pharmacy\"]" + filter + bbox + ";"
+                + ");out center tags;";
+    }
+
+    private static String bbox(double[] box) {
+        return String.format(Locale.ROOT, "(%.6f,%.6f,%.6f,%.6f)",
+                box[0], box[1], box[2], box[3]);
+    }
+
+    /**
+     * Tiles may be served from mirrors at different replication states; the
+     * oldest one is the safe base for the next delta.
+     */
+    private static String earliest(String a, String b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        return a.compareTo(b) <= 0 ? a : b;
+    }
+
+    private List<double[]> tiles() {
+        double latStep = (regionBox[2] - regionBox[0]) / tilesPerSide;
+        double lonStep = (regionBox[3] - regionBox[1]) / tilesPerSide;
+
+        List<double[]> tiles = new ArrayList<>();
+        for (int r = 0; r < tilesPerSide; r++) {
+            for (int c = 0; c < tilesPerSide; c++) {
+                tiles.add(new double[]{
+                        regionBox[0] + r * latStep,
+                        regionBox[1] + c * lonStep,
+                        regionBox[0] + (r + 1) * latStep,
+                        regionBox[1] + (c + 1) * lonStep
+                });
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * Parse "south,west,north,east".
+     */
+    private static double[] parseBox(String value) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+
+        try {
+            String[] parts = value.split(",");
+            if (parts.length != 4) {
+                throw new NumberFormatException("expected 4 values");
+            }
+
+            double[] box = new double[4];
+            for (int i = 0; i < 4; i++) {
+                box[i] = Double.parseDouble(parts[i].trim());
+            }
+            if (box[0] >= box[2] || box[1] >= box[3]) {
+                throw new NumberFormatException("south/west must be below north/east");
+            }
+            return box;
+
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid offline.region.bbox '{}': {}", value, e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.pharmalocator.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Prefix index over past searches for autocomplete.
+ *
+ * A trie keyed by the lower-cased query, where every node keeps its best
+ * few completions already ranked. A suggestion lookup walks the typed
+ * prefix and returns that node's list, so its cost depends on the length
+ * of the prefix and not on the size of the history.
+ *
+ * Ranking combines frequency and recency: each search adds
+ * {@code 2^(t / halfLife)} to the query's score, so a search made one
+ * half-life ago counts half as much as one made now. Scores are kept as
+ * base-2 logarithms relative to a fixed epoch, which means they only ever
+ * grow and a node's top list can be maintained incrementally.
+ *
+ * The history is persisted in the search_history table and read in the
+ * background on first use.
+ */
+public class SearchHistoryIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(SearchHistoryIndex.class);
+
+    private static final int MAX_SUGGESTIONS = 5;
+    private static final double HALF_LIFE_SECONDS = 14 * 24 * 3600.0;
+
+    private static SearchHistoryIndex instance;
+
+    private final Node root = new Node();
+    private final Map<String, Entry> entries = new HashMap<>();
+    private boolean loadStarted;
+
+    private SearchHistoryIndex() {
+    }
+
+    public static synchronized SearchHistoryIndex getInstance() {
+        if (instance == null) {
+            instance = new SearchHistoryIndex();
+        }
+        return instance;
+    }
+
+    /* =========================
+       API
+       ========================= */
+
+    /**
+     * Record a search: update the index and persist it in the background.
+     */
+    public void add(String query) {
+        if (query == null || query.isBlank()) {
+            return;
+        }
+        String trimmed = query.trim();
+        long now = System.currentTimeMillis() / 1000;
+
+        synchronized (this) {
+            ensureLoading();
+            record(trimmed, now);
+        }
+        DatabaseService.getInstance().addSearchHistoryAsync(trimmed);
+    }
+
+    /**
+     * Best ranked past searches starting with {@code prefix}, ignoring case.
+     */
+    public synchronized List<String> suggest(String prefix) {
+        ensureLoading();
+
+        Node node = root;
+        String key = prefix.toLowerCase(Locale.ROOT);
+        for (int i = 0; i < key.length() && node != null; i++) {
+            node = node.children.get(key.charAt(i));
+        }
+
+        List<String> suggestions = new ArrayList<>();
+        if (node != null) {
+            for (Entry entry : node.top) {
+                suggestions.add(entry.text);
+            }
+        }
+        return suggestions;
+    }
+
+    /* =========================
+       LOADING
+       ========================= */
+
+    private void ensureLoading() {
+        if (loadStarted) {
+            return;
+        }
+        loadStarted = true;
+
+        // Scores add up in any order, so searches made meanwhile are kept
+        DatabaseService.getInstance().getSearchHistoryAsync().thenAccept(rows -> {
+            synchronized (this) {
+                for (DatabaseService.SearchHistoryRow row : rows) {
+                    record(row.getQuery(), row.getSearchedAt());
+                }
+            }
+            logger.info("Search history loaded: {} searches, {} distinct", rows.size(), entries.size());
+        });
+    }
+
+    /* =========================
+       INDEX
+       ========================= */
+
+    private void record(String text, long epochSeconds) {
+        String key = text.toLowerCase(Locale.ROOT);
+        Entry entry = entries.computeIfAbsent(key, k -> new Entry());
+
+        if (epochSeconds >= entry.lastUsed) {
+            entry.text = text;
+            entry.lastUsed = epochSeconds;
+        }
+        entry.logScore = logAdd(entry.logScore, epochSeconds / HALF_LIFE_SECONDS);
+
+        // The score only grew, so the entry can only move up in each list
+        Node node = root;
+        offer(node, entry);
+        for (int i = 0; i < key.length(); i++) {
+            node = node.children.computeIfAbsent(key.charAt(i), c -> new Node());
+            offer(node, entry);
+        }
+    }
+
+    private static void offer(Node node, Entry entry) {
+        List<Entry> top = node.top;
+        int current = top.indexOf(entry);
+        if (current >= 0) {
+            top.remove(current);
+        } else if (top.size() == MAX_SUGGESTIONS
+                && top.get(MAX_SUGGESTIONS - 1).logScore >= entry.logScore) {
+            return;
+        }
+
+        int pos = 0;
+        while (pos < top.size() && top.get(pos).logScore >= entry.logScore) {
+            pos++;
+        }
+        top.add(pos, entry);
+        if (top.size() > MAX_SUGGESTIONS) {
+            top.remove(MAX_SUGGESTIONS);
+        }
+    }
+
+    /**
+     * log2(2^a + 2^b) without overflowing for large exponents.
+     */
+    private static double logAdd(double a, double b) {
+        if (a == Double.NEGATIVE_INFINITY) {
+            return b;
+        }
+        double max = Math.max(a, b);
+        return max + Math.log1p(Math.pow(2, -Math.abs(a - b))) / Math.log(2);
+    }
+
+    private static class Entry {
+        String text;
+        long lastUsed = Long.MIN_VALUE;
+        double logScore = Double.NEGATIVE_INFINITY;
+    }
+
+    private static class Node {
+        final Map<Character, Node> children = new HashMap<>(4);
+        final List<Entry> top = new ArrayList<>(MAX_SUGGESTIONS + 1);
+    }
+}